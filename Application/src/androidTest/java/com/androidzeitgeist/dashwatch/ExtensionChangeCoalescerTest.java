@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2014 Sebastian Kaspari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.androidzeitgeist.dashwatch;
+
+import android.content.ComponentName;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+
+import junit.framework.TestCase;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Drives {@link ExtensionChangeCoalescer} on a handler thread and checks when and with which
+ * extensions it flushes.
+ */
+public class ExtensionChangeCoalescerTest extends TestCase {
+    private static final long QUIET_PERIOD_MILLIS = 200;
+    private static final long MAX_LATENCY_MILLIS = 1000;
+
+    /**
+     * Changes of the steady stream come in faster than the quiet period.
+     */
+    private static final long CHANGE_INTERVAL_MILLIS = 50;
+
+    /**
+     * Allowed delay of a flush caused by the scheduling of the handler thread.
+     */
+    private static final long TOLERANCE_MILLIS = 250;
+
+    private HandlerThread mThread;
+    private Handler mHandler;
+
+    /**
+     * Only accessed on the handler thread.
+     */
+    private final Set<ComponentName> mMarked = new HashSet<ComponentName>();
+    private Set<ComponentName> mExpected;
+    private Set<ComponentName> mFlushed;
+    private boolean mAllChanged;
+    private long mFirstChangeUptimeMillis;
+    private long mFlushUptimeMillis;
+
+    private final CountDownLatch mFlushLatch = new CountDownLatch(1);
+
+    private ExtensionChangeCoalescer mCoalescer;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+
+        mThread = new HandlerThread("ExtensionChangeCoalescerTest");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+
+        mCoalescer = new ExtensionChangeCoalescer(mHandler, QUIET_PERIOD_MILLIS,
+                MAX_LATENCY_MILLIS, new ExtensionChangeCoalescer.OnFlushListener() {
+            @Override
+            public void onFlush(Set<ComponentName> changedExtensions, boolean allChanged) {
+                if (mFlushed != null) {
+                    return;
+                }
+
+                mFlushUptimeMillis = SystemClock.uptimeMillis();
+                mExpected = new HashSet<ComponentName>(mMarked);
+                mFlushed = changedExtensions;
+                mAllChanged = allChanged;
+                mFlushLatch.countDown();
+            }
+        });
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mCoalescer.cancel();
+            }
+        });
+        mThread.quit();
+
+        super.tearDown();
+    }
+
+    public void testSteadyChangesAreFlushedWithinMaxLatency() throws InterruptedException {
+        mHandler.post(new Runnable() {
+            private int mCount;
+
+            @Override
+            public void run() {
+                if (mFlushed != null) {
+                    // Stop the stream after the first flush.
+                    return;
+                }
+
+                if (mFirstChangeUptimeMillis == 0) {
+                    mFirstChangeUptimeMillis = SystemClock.uptimeMillis();
+                }
+
+                ComponentName componentName = createComponentName(mCount++);
+                mMarked.add(componentName);
+                mCoalescer.markChanged(componentName);
+
+                mHandler.postDelayed(this, CHANGE_INTERVAL_MILLIS);
+            }
+        });
+
+        assertTrue("No flush within max latency",
+                mFlushLatch.await(MAX_LATENCY_MILLIS + TOLERANCE_MILLIS, TimeUnit.MILLISECONDS));
+
+        long latency = mFlushUptimeMillis - mFirstChangeUptimeMillis;
+        assertTrue("Flushed after " + latency + "ms",
+                latency <= MAX_LATENCY_MILLIS + TOLERANCE_MILLIS);
+
+        // The quiet period never passed: Only the max latency could have caused the flush.
+        assertTrue("Flushed after " + latency + "ms", latency >= MAX_LATENCY_MILLIS);
+
+        assertFalse(mAllChanged);
+        assertTrue(mExpected.size() > 1);
+        assertEquals(mExpected, mFlushed);
+    }
+
+    public void testUnscheduledChangesAreFlushedWithinMaxLatency() throws InterruptedException {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                // Like changes during a refresh batch: No flush after the quiet period.
+                mFirstChangeUptimeMillis = SystemClock.uptimeMillis();
+
+                for (int i = 0; i < 3; i++) {
+                    ComponentName componentName = createComponentName(i);
+                    mMarked.add(componentName);
+                    mCoalescer.markChanged(componentName, false);
+                }
+            }
+        });
+
+        assertTrue("No flush within max latency",
+                mFlushLatch.await(MAX_LATENCY_MILLIS + TOLERANCE_MILLIS, TimeUnit.MILLISECONDS));
+
+        long latency = mFlushUptimeMillis - mFirstChangeUptimeMillis;
+        assertTrue("Flushed after " + latency + "ms", latency >= MAX_LATENCY_MILLIS);
+        assertEquals(mExpected, mFlushed);
+    }
+
+    public void testSingleChangeIsFlushedAfterQuietPeriod() throws InterruptedException {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mFirstChangeUptimeMillis = SystemClock.uptimeMillis();
+
+                ComponentName componentName = createComponentName(0);
+                mMarked.add(componentName);
+                mCoalescer.markChanged(componentName);
+            }
+        });
+
+        assertTrue("No flush after quiet period", mFlushLatch.await(
+                QUIET_PERIOD_MILLIS + TOLERANCE_MILLIS, TimeUnit.MILLISECONDS));
+
+        long latency = mFlushUptimeMillis - mFirstChangeUptimeMillis;
+        assertTrue("Flushed after " + latency + "ms", latency >= QUIET_PERIOD_MILLIS);
+        assertEquals(mExpected, mFlushed);
+    }
+
+    public void testAllChangedIsFlushed() throws InterruptedException {
+        mHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mCoalescer.markChanged(createComponentName(0));
+                mCoalescer.markChanged(null);
+                mCoalescer.flush();
+            }
+        });
+
+        assertTrue("No flush", mFlushLatch.await(TOLERANCE_MILLIS, TimeUnit.MILLISECONDS));
+        assertTrue(mAllChanged);
+        assertEquals(1, mFlushed.size());
+    }
+
+    private static ComponentName createComponentName(int index) {
+        return new ComponentName("net.nurik.roman.dashclock", "Extension" + index);
+    }
+}
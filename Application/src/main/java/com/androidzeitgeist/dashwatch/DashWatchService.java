@@ -21,7 +21,6 @@ import android.content.ComponentName;
 import android.content.Intent;
 import android.os.Handler;
 import android.os.IBinder;
-import android.os.Message;
 import android.os.PowerManager;
 import android.support.v4.content.WakefulBroadcastReceiver;
 import android.util.Log;
@@ -30,26 +29,62 @@ import com.androidzeitgeist.dashwatch.dashclock.ExtensionHost;
 import com.androidzeitgeist.dashwatch.dashclock.ExtensionManager;
 import com.google.android.apps.dashclock.api.DashClockExtension;
 
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 
 public class DashWatchService extends Service implements ExtensionManager.OnChangeListener {
     private static final String TAG = "DashWatchService";
 
-    private Handler mUpdateHandler = new Handler() {
-        @Override
-        public void handleMessage(Message msg) {
-            Log.i(TAG, "Extensions changed: " + (msg.obj != null ? "extension " + msg.obj : "DashClock"));
+    /**
+     * Refreshes all extensions in one batch and syncs the result once (See
+     * {@link PeriodicRefreshReceiver}).
+     */
+    public static final String ACTION_PERIODIC_REFRESH
+            = "com.androidzeitgeist.dashwatch.action.PERIODIC_REFRESH";
 
-            // TODO: Replace this with sending just the extension data of the updated extension?
-            mWearableManager.sendExtensionDataToWearable();
-        }
-    };
+    /**
+     * Changes are synced at most this long after the first change, even if extensions keep on
+     * publishing updates.
+     */
+    private static final long SYNC_MAX_LATENCY_MILLIS = 5 * 1000;
+
+    /**
+     * Collects the extensions that published new data since the last sync. Only accessed on the
+     * main thread.
+     */
+    private final ExtensionChangeCoalescer mChangeCoalescer = new ExtensionChangeCoalescer(
+            new Handler(), ExtensionHost.UPDATE_COLLAPSE_TIME_MILLIS, SYNC_MAX_LATENCY_MILLIS,
+            new ExtensionChangeCoalescer.OnFlushListener() {
+                @Override
+                public void onFlush(Set<ComponentName> changedExtensions, boolean allChanged) {
+                    if (allChanged) {
+                        Log.i(TAG, "Extensions changed: DashClock");
+
+                        mWearableManager.sendExtensionDataToWearable();
+                    } else {
+                        Log.i(TAG, "Extensions changed: " + changedExtensions);
+
+                        mWearableManager.sendExtensionDataToWearable(changedExtensions);
+                    }
+                }
+            });
 
     /**
      * The maximum duration for the wakelock.
      */
     private static final long UPDATE_WAKELOCK_TIMEOUT_MILLIS = 30 * 1000;
 
+    /**
+     * The time extensions have to answer a refresh batch. Shorter than the wakelock timeout.
+     */
+    private static final long REFRESH_DEADLINE_MILLIS = 20 * 1000;
+
+    /**
+     * Wakeful intents whose wake lock is held until the running refresh batch has finished.
+     */
+    private final List<Intent> mWakefulIntents = new ArrayList<Intent>();
+
     private WearableManager mWearableManager;
     private ExtensionManager mExtensionManager;
     private ExtensionHost mExtensionHost;
@@ -64,6 +99,15 @@ public class DashWatchService extends Service implements ExtensionManager.OnChan
         mExtensionManager = ExtensionManager.getInstance(this);
         mExtensionManager.addOnChangeListener(this);
         mExtensionHost = new ExtensionHost(this);
+        mExtensionHost.setRefreshBatchListener(new ExtensionHost.RefreshBatchListener() {
+            @Override
+            public void onRefreshFinished(Set<ComponentName> unanswered) {
+                // Syncs are held back while a refresh batch is running; sync all changes at once.
+                mChangeCoalescer.flush();
+            }
+        });
+
+        PeriodicRefreshReceiver.schedule(this);
     }
 
     @Override
@@ -71,16 +115,24 @@ public class DashWatchService extends Service implements ExtensionManager.OnChan
         super.onDestroy();
         Log.d(TAG, "onDestroy");
 
-        mUpdateHandler.removeCallbacksAndMessages(null);
+        mChangeCoalescer.cancel();
         mExtensionManager.removeOnChangeListener(this);
+        mExtensionManager.flush();
         mExtensionHost.destroy();
+
+        for (Intent intent : mWakefulIntents) {
+            WakefulBroadcastReceiver.completeWakefulIntent(intent);
+        }
+        mWakefulIntents.clear();
     }
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
         Log.d(TAG, "onStartCommand: " + (intent != null ? intent.toString() : "no intent"));
 
-        if (intent != null) {
+        if (intent != null && ACTION_PERIODIC_REFRESH.equals(intent.getAction())) {
+            refreshExtensions(intent);
+        } else if (intent != null) {
             updateExtensions();
 
             // If started by a wakeful broadcast receiver, release the wake lock it acquired.
@@ -92,10 +144,9 @@ public class DashWatchService extends Service implements ExtensionManager.OnChan
 
     @Override
     public void onExtensionsChanged(ComponentName sourceExtension) {
-        mUpdateHandler.removeCallbacksAndMessages(null);
-        mUpdateHandler.sendMessageDelayed(
-                mUpdateHandler.obtainMessage(0, sourceExtension),
-                ExtensionHost.UPDATE_COLLAPSE_TIME_MILLIS);
+        // While a refresh batch is running the changes are synced at once when it has finished,
+        // but not later than the maximum latency.
+        mChangeCoalescer.markChanged(sourceExtension, !mExtensionHost.isRefreshing());
     }
 
     /**
@@ -110,6 +161,11 @@ public class DashWatchService extends Service implements ExtensionManager.OnChan
 
         try {
             for (ComponentName cn : mExtensionManager.getActiveExtensionNames()) {
+                if (mExtensionHost.isQuarantined(cn)) {
+                    Log.d(TAG, "Skipping quarantined extension " + cn.flattenToShortString());
+                    continue;
+                }
+
                 mExtensionHost.execute(
                         cn,
                         ExtensionHost.UPDATE_OPERATIONS.get(reason),
@@ -122,6 +178,26 @@ public class DashWatchService extends Service implements ExtensionManager.OnChan
         }
     }
 
+    /**
+     * Asks all extensions for an update in one batch. The wake lock of the wakeful intent is held
+     * until all extensions answered or the deadline has passed.
+     */
+    private void refreshExtensions(Intent wakefulIntent) {
+        mWakefulIntents.add(wakefulIntent);
+
+        mExtensionHost.refresh(mExtensionManager.getActiveExtensionNames(),
+                DashClockExtension.UPDATE_REASON_PERIODIC, 0, REFRESH_DEADLINE_MILLIS,
+                new ExtensionHost.RefreshBatchListener() {
+                    @Override
+                    public void onRefreshFinished(Set<ComponentName> unanswered) {
+                        for (Intent intent : mWakefulIntents) {
+                            WakefulBroadcastReceiver.completeWakefulIntent(intent);
+                        }
+                        mWakefulIntents.clear();
+                    }
+                });
+    }
+
     @Override
     public IBinder onBind(Intent intent) {
         return null;
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2014 Sebastian Kaspari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.androidzeitgeist.dashwatch;
+
+import android.content.ComponentName;
+import android.os.Handler;
+import android.os.SystemClock;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Collects the extensions that changed and flushes them together once no further change happened
+ * for a quiet period. A steady trickle of changes cannot postpone the flush forever: It happens at
+ * most the maximum latency after the first change.
+ *
+ * Must only be used on the thread of the handler's looper.
+ */
+public class ExtensionChangeCoalescer {
+    public static interface OnFlushListener {
+        /**
+         * @param changedExtensions The extensions that changed since the last flush.
+         * @param allChanged True if all extensions should be considered changed.
+         */
+        void onFlush(Set<ComponentName> changedExtensions, boolean allChanged);
+    }
+
+    private final Handler mHandler;
+    private final long mQuietPeriodMillis;
+    private final long mMaxLatencyMillis;
+    private final OnFlushListener mListener;
+
+    private final Set<ComponentName> mChangedExtensions = new HashSet<ComponentName>();
+    private boolean mAllChanged;
+
+    /**
+     * Uptime of the first change since the last flush or 0.
+     */
+    private long mFirstChangeUptimeMillis;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public ExtensionChangeCoalescer(Handler handler, long quietPeriodMillis, long maxLatencyMillis,
+                                    OnFlushListener listener) {
+        mHandler = handler;
+        mQuietPeriodMillis = quietPeriodMillis;
+        mMaxLatencyMillis = maxLatencyMillis;
+        mListener = listener;
+    }
+
+    /**
+     * Marks the extension as changed and schedules a flush.
+     *
+     * @param componentName The extension or null if all extensions changed.
+     */
+    public void markChanged(ComponentName componentName) {
+        markChanged(componentName, true);
+    }
+
+    /**
+     * Marks the extension as changed. If scheduleFlush is false no flush is scheduled for the quiet
+     * period: The change is flushed with the next explicit flush (See {@link #flush()}), but not
+     * later than the maximum latency after the first change.
+     *
+     * @param componentName The extension or null if all extensions changed.
+     */
+    public void markChanged(ComponentName componentName, boolean scheduleFlush) {
+        if (componentName != null) {
+            mChangedExtensions.add(componentName);
+        } else {
+            mAllChanged = true;
+        }
+
+        long now = SystemClock.uptimeMillis();
+        if (mFirstChangeUptimeMillis == 0) {
+            mFirstChangeUptimeMillis = now;
+        }
+
+        long flushUptimeMillis = mFirstChangeUptimeMillis + mMaxLatencyMillis;
+        if (scheduleFlush) {
+            flushUptimeMillis = Math.min(now + mQuietPeriodMillis, flushUptimeMillis);
+        }
+
+        mHandler.removeCallbacks(mFlushRunnable);
+        mHandler.postAtTime(mFlushRunnable, flushUptimeMillis);
+    }
+
+    /**
+     * Flushes the changes now if there are any.
+     */
+    public void flush() {
+        mHandler.removeCallbacks(mFlushRunnable);
+
+        if (!mAllChanged && mChangedExtensions.isEmpty()) {
+            return;
+        }
+
+        Set<ComponentName> changedExtensions = new HashSet<ComponentName>(mChangedExtensions);
+        boolean allChanged = mAllChanged;
+
+        mChangedExtensions.clear();
+        mAllChanged = false;
+        mFirstChangeUptimeMillis = 0;
+
+        mListener.onFlush(changedExtensions, allChanged);
+    }
+
+    /**
+     * Drops all changes without flushing them.
+     */
+    public void cancel() {
+        mHandler.removeCallbacks(mFlushRunnable);
+        mChangedExtensions.clear();
+        mAllChanged = false;
+        mFirstChangeUptimeMillis = 0;
+    }
+}
@@ -23,11 +23,14 @@ import android.util.Log;
 import com.androidzeitgeist.dashwatch.common.Constants;
 import com.androidzeitgeist.dashwatch.dashclock.ExtensionManager;
 import com.androidzeitgeist.dashwatch.muzei.SourceManager;
+import com.google.android.gms.wearable.DataMap;
 import com.google.android.gms.wearable.MessageEvent;
+import com.google.android.gms.wearable.Node;
 import com.google.android.gms.wearable.WearableListenerService;
 
 import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
+import java.nio.charset.Charset;
 
 public class MessageReceiverService extends WearableListenerService {
     private static final String TAG = "MessageReceiverService";
@@ -39,10 +42,28 @@ public class MessageReceiverService extends WearableListenerService {
         if (Constants.PATH_INTENT.equals(messageEvent.getPath())) {
             fireIntent(messageEvent.getData());
         } else if (Constants.PATH_SETUP.equals(messageEvent.getPath())) {
-            setupWatchFace();
+            setupWatchFace(messageEvent.getSourceNodeId(), messageEvent.getData());
+        } else if (Constants.PATH_ICON_ACK.equals(messageEvent.getPath())) {
+            DataMap ack = DataMap.fromByteArray(messageEvent.getData());
+            WearableManager.getInstance(this).acknowledgeIcons(
+                    messageEvent.getSourceNodeId(),
+                    ack.getStringArrayList(Constants.KEY_ICON_DIGESTS)
+            );
+        } else if (Constants.PATH_ICON_MISSING.equals(messageEvent.getPath())) {
+            WearableManager.getInstance(this).onIconMissing(
+                    messageEvent.getSourceNodeId(),
+                    new String(messageEvent.getData(), Charset.forName("UTF-8"))
+            );
         }
     }
 
+    @Override
+    public void onPeerConnected(Node peer) {
+        Log.i(TAG, String.format("onPeerConnected(): %s", peer.getId()));
+
+        WearableManager.getInstance(this).resetSyncState(peer.getId());
+    }
+
     private void fireIntent(byte[] data) {
         Log.i(TAG, "fireIntent()");
 
@@ -59,12 +80,11 @@ public class MessageReceiverService extends WearableListenerService {
         }
     }
 
-    private void setupWatchFace() {
+    private void setupWatchFace(String nodeId, byte[] data) {
         Log.i(TAG, "setupWatchFace()");
 
-        WearableManager wearableManager = WearableManager.getInstance(this);
+        DataMap setup = data != null && data.length > 0 ? DataMap.fromByteArray(data) : null;
 
-        wearableManager.sendExtensionDataToWearable();
-        wearableManager.sendArtworkToWearable();
+        WearableManager.getInstance(this).setupWearable(nodeId, setup);
     }
 }
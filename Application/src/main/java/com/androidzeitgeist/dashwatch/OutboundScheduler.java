@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2014 Sebastian Kaspari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.androidzeitgeist.dashwatch;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.EnumMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Runs the tasks sending data to the wearable. Tasks are queued in lanes by priority:
+ *
+ * Control and status tasks are small and latency-sensitive. They are run one after another by a
+ * worker that always takes control tasks first. Bulk tasks (artwork) are run by a worker of their
+ * own, so that a large transfer never delays a status update.
+ *
+ * Within a lane tasks are run in the order they have been submitted. Each lane keeps track of its
+ * queue depth and of how long tasks had to wait.
+ */
+public class OutboundScheduler {
+    private static final String TAG = "DashWatch/OutboundScheduler";
+
+    /**
+     * Tasks waiting longer than this are logged.
+     */
+    private static final long SLOW_WAIT_MILLIS = 1000;
+
+    public enum Lane {
+        /**
+         * Setup of the wearable and acknowledgements received from it. They change how the
+         * following tasks are sent and therefore overtake queued status tasks. Must not be used
+         * for data items: They would not keep their order.
+         */
+        CONTROL,
+
+        /**
+         * Extension updates, snapshots and removal of data items.
+         */
+        STATUS,
+
+        /**
+         * Large transfers like artwork.
+         */
+        BULK
+    }
+
+    private static class Task {
+        final Runnable runnable;
+        final long submitUptimeMillis;
+
+        Task(Runnable runnable) {
+            this.runnable = runnable;
+            this.submitUptimeMillis = SystemClock.uptimeMillis();
+        }
+    }
+
+    private static class LaneState {
+        final LinkedList<Task> queue = new LinkedList<Task>();
+        int maxQueueDepth;
+        int startedTasks;
+        long totalWaitMillis;
+        long maxWaitMillis;
+    }
+
+    private final Map<Lane, LaneState> mLanes = new EnumMap<Lane, LaneState>(Lane.class);
+
+    public OutboundScheduler() {
+        for (Lane lane : Lane.values()) {
+            mLanes.put(lane, new LaneState());
+        }
+
+        startWorker("OutboundScheduler-Priority", Lane.CONTROL, Lane.STATUS);
+        startWorker("OutboundScheduler-Bulk", Lane.BULK);
+    }
+
+    public synchronized void submit(Lane lane, Runnable runnable) {
+        LaneState state = mLanes.get(lane);
+        state.queue.add(new Task(runnable));
+
+        if (state.queue.size() > state.maxQueueDepth) {
+            state.maxQueueDepth = state.queue.size();
+        }
+
+        notifyAll();
+    }
+
+    /**
+     * Returns the number of tasks waiting in the lane.
+     */
+    public synchronized int getQueueDepth(Lane lane) {
+        return mLanes.get(lane).queue.size();
+    }
+
+    /**
+     * Returns the largest number of tasks that have been waiting in the lane at the same time.
+     */
+    public synchronized int getMaxQueueDepth(Lane lane) {
+        return mLanes.get(lane).maxQueueDepth;
+    }
+
+    /**
+     * Returns the average time tasks of the lane waited before they have been run.
+     */
+    public synchronized long getAverageWaitMillis(Lane lane) {
+        LaneState state = mLanes.get(lane);
+        return state.startedTasks > 0 ? state.totalWaitMillis / state.startedTasks : 0;
+    }
+
+    /**
+     * Returns the longest time a task of the lane waited before it has been run.
+     */
+    public synchronized long getMaxWaitMillis(Lane lane) {
+        return mLanes.get(lane).maxWaitMillis;
+    }
+
+    private void startWorker(String name, final Lane... lanes) {
+        Thread thread = new Thread(name) {
+            @Override
+            public void run() {
+                while (true) {
+                    Task task;
+                    try {
+                        task = take(lanes);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+
+                    try {
+                        task.runnable.run();
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Task failed", e);
+                    }
+                }
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Blocks until one of the lanes has a task and returns the task of the first lane (in the given
+     * order) that has one.
+     */
+    private synchronized Task take(Lane... lanes) throws InterruptedException {
+        while (true) {
+            for (Lane lane : lanes) {
+                LaneState state = mLanes.get(lane);
+                Task task = state.queue.poll();
+
+                if (task != null) {
+                    long wait = SystemClock.uptimeMillis() - task.submitUptimeMillis;
+
+                    state.startedTasks++;
+                    state.totalWaitMillis += wait;
+                    state.maxWaitMillis = Math.max(state.maxWaitMillis, wait);
+
+                    if (wait > SLOW_WAIT_MILLIS) {
+                        Log.d(TAG, String.format("Task of lane %s waited %dms (depth=%d)",
+                                lane, wait, state.queue.size()));
+                    }
+
+                    return task;
+                }
+            }
+
+            wait();
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 Sebastian Kaspari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.androidzeitgeist.dashwatch;
+
+import android.app.AlarmManager;
+import android.app.PendingIntent;
+import android.content.Context;
+import android.content.Intent;
+import android.os.SystemClock;
+import android.preference.PreferenceManager;
+import android.support.v4.content.WakefulBroadcastReceiver;
+import android.util.Log;
+
+/**
+ * Wakes up the device once per period to refresh all extensions in a single batch (See
+ * {@link DashWatchService#ACTION_PERIODIC_REFRESH}).
+ *
+ * The alarm is inexact so that the system can batch it with the alarms of other apps.
+ */
+public class PeriodicRefreshReceiver extends WakefulBroadcastReceiver {
+    private static final String TAG = "DashWatch/PeriodicRefreshReceiver";
+
+    private static final String PREF_REFRESH_INTERVAL = "periodic_refresh_interval";
+
+    /**
+     * Intervals of {@link AlarmManager} like {@link AlarmManager#INTERVAL_HOUR} can be batched
+     * best by the system.
+     */
+    private static final long DEFAULT_REFRESH_INTERVAL_MILLIS = AlarmManager.INTERVAL_HOUR;
+
+    @Override
+    public void onReceive(Context context, Intent intent) {
+        Log.d(TAG, "Periodic refresh");
+
+        startWakefulService(context, new Intent(context, DashWatchService.class)
+                .setAction(DashWatchService.ACTION_PERIODIC_REFRESH));
+    }
+
+    /**
+     * Schedules the periodic refresh with the configured interval unless it is already scheduled.
+     * Rescheduling on every start would push the refresh further out each time. Does nothing but
+     * cancel the refresh if it is disabled.
+     */
+    public static void schedule(Context context) {
+        schedule(context, false);
+    }
+
+    private static void schedule(Context context, boolean replace) {
+        long interval = getInterval(context);
+
+        AlarmManager alarmManager = (AlarmManager) context.getSystemService(Context.ALARM_SERVICE);
+
+        if (interval <= 0) {
+            Log.d(TAG, "Periodic refresh is disabled");
+            PendingIntent pendingIntent = getPendingIntent(context, PendingIntent.FLAG_NO_CREATE);
+            if (pendingIntent != null) {
+                alarmManager.cancel(pendingIntent);
+                pendingIntent.cancel();
+            }
+            return;
+        }
+
+        if (!replace && getPendingIntent(context, PendingIntent.FLAG_NO_CREATE) != null) {
+            return;
+        }
+
+        PendingIntent pendingIntent = getPendingIntent(context, PendingIntent.FLAG_UPDATE_CURRENT);
+        alarmManager.setInexactRepeating(AlarmManager.ELAPSED_REALTIME_WAKEUP,
+                SystemClock.elapsedRealtime() + interval, interval, pendingIntent);
+    }
+
+    public static long getInterval(Context context) {
+        return PreferenceManager.getDefaultSharedPreferences(context)
+                .getLong(PREF_REFRESH_INTERVAL, DEFAULT_REFRESH_INTERVAL_MILLIS);
+    }
+
+    /**
+     * Sets the interval of the periodic refresh and reschedules it. An interval of 0 disables the
+     * periodic refresh.
+     */
+    public static void setInterval(Context context, long intervalMillis) {
+        PreferenceManager.getDefaultSharedPreferences(context).edit()
+                .putLong(PREF_REFRESH_INTERVAL, intervalMillis)
+                .apply();
+
+        schedule(context, true);
+    }
+
+    private static PendingIntent getPendingIntent(Context context, int flags) {
+        return PendingIntent.getBroadcast(context, 0,
+                new Intent(context, PeriodicRefreshReceiver.class), flags);
+    }
+}
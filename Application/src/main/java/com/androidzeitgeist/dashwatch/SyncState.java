@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2014 Sebastian Kaspari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.androidzeitgeist.dashwatch;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of the extension data that has been sent to each connected node and of the icons
+ * each node has acknowledged. Data that every connected node already received does not need to
+ * be sent again.
+ */
+public class SyncState {
+    /**
+     * Node id -> (extension component -> sync hash of the last update sent to this node).
+     */
+    private final Map<String, Map<String, String>> mSentHashes
+            = new HashMap<String, Map<String, String>>();
+
+    /**
+     * Node id -> digests of the icons this node has stored.
+     */
+    private final Map<String, Set<String>> mAcknowledgedIcons
+            = new HashMap<String, Set<String>>();
+
+    /**
+     * Returns true if all the given nodes already received an update with this hash for the
+     * given extension. Returns false if there are no nodes.
+     */
+    public synchronized boolean isSent(Collection<String> nodeIds, String component, String hash) {
+        if (nodeIds.isEmpty()) {
+            return false;
+        }
+
+        for (String nodeId : nodeIds) {
+            Map<String, String> hashes = mSentHashes.get(nodeId);
+            if (hashes == null || !hash.equals(hashes.get(component))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public synchronized void markSent(Collection<String> nodeIds, String component, String hash) {
+        for (String nodeId : nodeIds) {
+            Map<String, String> hashes = mSentHashes.get(nodeId);
+            if (hashes == null) {
+                hashes = new HashMap<String, String>();
+                mSentHashes.put(nodeId, hashes);
+            }
+
+            hashes.put(component, hash);
+        }
+    }
+
+    /**
+     * Returns true if all the given nodes have acknowledged the icon with the given digest.
+     * Returns false if there are no nodes.
+     */
+    public synchronized boolean isIconAcknowledged(Collection<String> nodeIds, String digest) {
+        if (nodeIds.isEmpty()) {
+            return false;
+        }
+
+        for (String nodeId : nodeIds) {
+            Set<String> digests = mAcknowledgedIcons.get(nodeId);
+            if (digests == null || !digests.contains(digest)) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public synchronized void acknowledgeIcons(String nodeId, Collection<String> digests) {
+        Set<String> acknowledgedDigests = mAcknowledgedIcons.get(nodeId);
+        if (acknowledgedDigests == null) {
+            acknowledgedDigests = new HashSet<String>();
+            mAcknowledgedIcons.put(nodeId, acknowledgedDigests);
+        }
+
+        acknowledgedDigests.addAll(digests);
+    }
+
+    /**
+     * Forgets that the node has the icon with the given digest and everything that has been sent
+     * to the node, so that the next sync attaches this icon again.
+     */
+    public synchronized void forgetIcon(String nodeId, String digest) {
+        Set<String> digests = mAcknowledgedIcons.get(nodeId);
+        if (digests != null) {
+            digests.remove(digest);
+        }
+
+        mSentHashes.remove(nodeId);
+    }
+
+    /**
+     * Forgets what has been sent for the given extension to any node.
+     */
+    public synchronized void forget(String component) {
+        for (Map<String, String> hashes : mSentHashes.values()) {
+            hashes.remove(component);
+        }
+    }
+
+    /**
+     * Forgets everything that has been sent to the given node and which icons it has.
+     */
+    public synchronized void reset(String nodeId) {
+        mSentHashes.remove(nodeId);
+        mAcknowledgedIcons.remove(nodeId);
+    }
+
+    /**
+     * Forgets everything about nodes that are not in the given collection. A node reconnecting
+     * later will be sent all the data again.
+     */
+    public synchronized void retainNodes(Collection<String> nodeIds) {
+        mSentHashes.keySet().retainAll(nodeIds);
+        mAcknowledgedIcons.keySet().retainAll(nodeIds);
+    }
+}
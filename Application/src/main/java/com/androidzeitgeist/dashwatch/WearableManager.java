@@ -18,47 +18,91 @@ package com.androidzeitgeist.dashwatch;
 
 import android.content.ComponentName;
 import android.content.Context;
+import android.content.SharedPreferences;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
+import android.net.Uri;
 import android.os.Bundle;
 import android.text.TextUtils;
 import android.util.Log;
 
 import com.androidzeitgeist.dashwatch.common.AssetHelper;
-import com.androidzeitgeist.dashwatch.common.ConnectionUtil;
+import com.androidzeitgeist.dashwatch.common.ConnectionManager;
+import com.androidzeitgeist.dashwatch.common.ExtensionSnapshot;
 import com.androidzeitgeist.dashwatch.common.ExtensionUpdate;
-import com.androidzeitgeist.dashwatch.common.Utils;
+import com.androidzeitgeist.dashwatch.common.ExtensionUpdateCodec;
+import com.androidzeitgeist.dashwatch.common.IOUtil;
+import com.androidzeitgeist.dashwatch.dashclock.ExtensionIconCache;
 import com.androidzeitgeist.dashwatch.dashclock.ExtensionManager;
 import com.androidzeitgeist.dashwatch.common.Constants;
 import com.androidzeitgeist.dashwatch.muzei.ArtworkCache;
+import com.androidzeitgeist.dashwatch.muzei.ArtworkScaler;
 import com.androidzeitgeist.dashwatch.muzei.SourceManager;
 import com.google.android.apps.muzei.api.Artwork;
 import com.google.android.apps.muzei.api.internal.SourceState;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.wearable.Asset;
 import com.google.android.gms.wearable.DataApi;
+import com.google.android.gms.wearable.DataItemBuffer;
+import com.google.android.gms.wearable.DataMap;
+import com.google.android.gms.wearable.Node;
 import com.google.android.gms.wearable.PutDataMapRequest;
 import com.google.android.gms.wearable.PutDataRequest;
 import com.google.android.gms.wearable.Wearable;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Set;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class WearableManager {
     private static final String TAG = "DashWatch/WearableManager";
 
+    private static final String PREFERENCE_NAME = "wearable";
+    private static final String PREF_DISPLAY_WIDTH = "display_width";
+    private static final String PREF_DISPLAY_HEIGHT = "display_height";
+    private static final String PREF_SNAPSHOT_VERSION = "snapshot_version";
+    private static final String PREF_CODEC_VERSION = "codec_version";
+
+    /**
+     * Display size assumed until the wearable tells us its real size.
+     */
+    private static final int DEFAULT_DISPLAY_SIZE = 320;
+
     private static WearableManager sInstance;
 
     private Context mApplicationContext;
-    private GoogleApiClient mGoogleApiClient;
+    private ConnectionManager mConnectionManager;
     private SourceManager mSourceManager;
     private ArtworkCache mArtworkCache;
     private ExtensionManager mExtensionManager;
-    private ExecutorService mExecutorService;
+    private ExtensionIconCache mIconCache;
+    private OutboundScheduler mOutboundScheduler;
+    private SharedPreferences mPreferences;
+
+    /**
+     * The active extensions in the order (position) they have been sent with the last full sync.
+     */
+    private List<ComponentName> mSyncedExtensions = new ArrayList<ComponentName>();
+
+    /**
+     * True once the data items of extensions that were deactivated while the process was not
+     * running have been removed (See {@link #removeStaleDataItemsInBackground(List)}).
+     */
+    private volatile boolean mStaleDataItemsRemoved;
+
+    private SyncState mSyncState = new SyncState();
+
+    /**
+     * Incremented for every artwork transfer. A queued transfer is skipped if a newer one has been
+     * requested in the meantime.
+     */
+    private final AtomicInteger mArtworkSequence = new AtomicInteger();
 
     public static WearableManager getInstance(Context context) {
         if (sInstance == null) {
@@ -71,20 +115,24 @@ public class WearableManager {
     private WearableManager(Context context) {
         mApplicationContext = context.getApplicationContext();
 
-        mExecutorService = Executors.newSingleThreadExecutor();
+        mOutboundScheduler = new OutboundScheduler();
+        mPreferences = mApplicationContext.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE);
 
         mSourceManager = SourceManager.getInstance(mApplicationContext);
         mArtworkCache = ArtworkCache.getInstance(mApplicationContext);
         mExtensionManager = ExtensionManager.getInstance(mApplicationContext);
+        mIconCache = ExtensionIconCache.getInstance(mApplicationContext);
 
-        mGoogleApiClient = new GoogleApiClient.Builder(context)
-                .addApi(Wearable.API)
-                .build();
+        mConnectionManager = ConnectionManager.getInstance(mApplicationContext);
     }
 
     public void sendExtensionData(int position, ExtensionManager.ExtensionWithData extension) {
-        Log.d(TAG, String.format("Sending extension (%d): %s", position, extension.listing.title));
+        Log.d(TAG, String.format("Sending extension (%d): %s", position, extension.listing.getTitle()));
 
+        sendToWearable(createUpdate(position, extension));
+    }
+
+    private ExtensionUpdate createUpdate(int position, ExtensionManager.ExtensionWithData extension) {
         String title = extension.latestData.expandedTitle();
         if (TextUtils.isEmpty(title)) {
             title = extension.latestData.status();
@@ -99,106 +147,464 @@ public class WearableManager {
         update.setVisible(extension.latestData.visible());
         update.setPosition(position);
 
-        update.setIcon(
-                Utils.loadExtensionIcon(
-                    mApplicationContext,
-                    extension.listing.componentName,
-                    extension.latestData.icon(),
-                    extension.latestData.iconUri(),
-                    0xFFFFFFFF
-                )
+        ExtensionIconCache.Icon icon = mIconCache.getIcon(
+                extension.listing.componentName,
+                extension.latestData.icon(),
+                extension.latestData.iconUri(),
+                0xFFFFFFFF
         );
 
-        sendToWearable(update);
+        if (icon != null) {
+            update.setIcon(icon.bitmap, icon.data, icon.digest);
+        }
+
+        return update;
     }
 
+    /**
+     * Sends the current artwork of the selected source. The artwork is encoded and sent in the
+     * background; a send that has been superseded by a newer one before it ran is skipped, so that
+     * at most one artwork is pending at a time and an older artwork is never put after a newer one.
+     */
     public void sendArtworkToWearable() {
+        final int sequence = mArtworkSequence.incrementAndGet();
+
+        mOutboundScheduler.submit(OutboundScheduler.Lane.BULK, new Runnable() {
+            @Override
+            public void run() {
+                if (sequence != mArtworkSequence.get()) {
+                    Log.d(TAG, "Artwork transfer has been superseded");
+                    return;
+                }
+
+                File file = getCurrentArtworkFile();
+                if (file == null) {
+                    return;
+                }
+
+                Log.d(TAG, "Sending file from path: " + file.getPath());
+
+                Asset asset = createArtworkAsset(file);
+                if (asset == null) {
+                    return;
+                }
+
+                // The artwork may have changed while it has been encoded.
+                if (sequence != mArtworkSequence.get() || !file.equals(getCurrentArtworkFile())) {
+                    Log.d(TAG, "Artwork changed while encoding; not sending " + file.getPath());
+                    return;
+                }
+
+                PutDataMapRequest putDataMapRequest = PutDataMapRequest.create(Constants.PATH_ARTWORK_UDPATE);
+                putDataMapRequest.getDataMap().putAsset(Constants.KEY_ARTWORK_ASSET, asset);
+
+                putDataItem(putDataMapRequest);
+            }
+        });
+    }
+
+    /**
+     * Returns the cache file of the current artwork of the selected source or null.
+     */
+    private File getCurrentArtworkFile() {
         ComponentName componentName = mSourceManager.getSelectedSource();
 
         if (componentName == null) {
             Log.d(TAG, "No selected source");
-            return;
+            return null;
         }
 
         SourceState sourceState = mSourceManager.getSelectedSourceState();
 
         if (sourceState == null) {
             Log.d(TAG, "No state for selected source");
-            return;
+            return null;
         }
 
         Artwork artwork = sourceState.getCurrentArtwork();
 
         if (artwork == null) {
             Log.d(TAG, "No artwork for  selected source");
-            return;
+            return null;
         }
 
         File file = mArtworkCache.getArtworkCacheFile(componentName, artwork);
         if (file == null) {
             Log.d(TAG, "No artwork file for selected source");
-            return;
+            return null;
         }
 
-        if (!ConnectionUtil.validateConnection(mGoogleApiClient)) {
-            Log.e(TAG, "No Google API Client connection");
-            return;
-        }
+        return file;
+    }
 
-        Log.d(TAG, "Sending file from path: " + file.getPath());
+    private Asset createArtworkAsset(File file) {
+        int width = mPreferences.getInt(PREF_DISPLAY_WIDTH, DEFAULT_DISPLAY_SIZE);
+        int height = mPreferences.getInt(PREF_DISPLAY_HEIGHT, DEFAULT_DISPLAY_SIZE);
 
-        PutDataMapRequest putDataMapRequest = PutDataMapRequest.create(Constants.PATH_ARTWORK_UDPATE);
+        if (ArtworkScaler.isWatchFriendly(file, width, height, AssetHelper.Policy.ARTWORK.maxBytes)) {
+            // No need to decode and encode the artwork again: Send the file as it is.
+            try {
+                byte[] data = IOUtil.readFully(file);
 
-        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+                Log.d(TAG, String.format("Sending artwork file as it is (%d bytes)", data.length));
+
+                return Asset.createFromBytes(data);
+            } catch (IOException e) {
+                Log.w(TAG, "Could not read artwork file: " + file.getPath(), e);
+            }
+        }
+
+        Bitmap bitmap = ArtworkScaler.decodeArtwork(file, width, height);
 
         if (bitmap == null) {
             Log.d(TAG, "Could not load bitmap from path: " + file.getPath());
+            return null;
+        }
+
+        AssetHelper.EncodedImage image = AssetHelper.encodeBitmap(bitmap, AssetHelper.Policy.ARTWORK);
+
+        Log.d(TAG, "Encoded artwork: " + image);
+
+        return Asset.createFromBytes(image.data);
+    }
+
+    /**
+     * Applies the setup message of a wearable and sends everything to it again.
+     *
+     * Runs on the control lane: The display size, the snapshot and codec versions and the icons
+     * the wearable still has are in place before any queued status or artwork task is sent.
+     *
+     * @param setup The setup message or null if the wearable sent an empty one.
+     */
+    public void setupWearable(final String nodeId, final DataMap setup) {
+        mOutboundScheduler.submit(OutboundScheduler.Lane.CONTROL, new Runnable() {
+            @Override
+            public void run() {
+                // The watch face might have lost its state: Send everything again.
+                mSyncState.reset(nodeId);
+
+                if (setup != null) {
+                    setDisplaySize(
+                            setup.getInt(Constants.KEY_DISPLAY_WIDTH),
+                            setup.getInt(Constants.KEY_DISPLAY_HEIGHT)
+                    );
+
+                    // Watches that don't know about snapshots or codecs don't send versions.
+                    setSnapshotVersion(setup.getInt(Constants.KEY_SNAPSHOT_VERSION, 0));
+                    setCodecVersions(setup.getIntegerArrayList(Constants.KEY_CODECS));
+
+                    // The icons the watch still has from earlier syncs.
+                    if (setup.containsKey(Constants.KEY_ICON_DIGESTS)) {
+                        mSyncState.acknowledgeIcons(nodeId,
+                                setup.getStringArrayList(Constants.KEY_ICON_DIGESTS));
+                    }
+                }
+
+                sendExtensionDataToWearable();
+                sendArtworkToWearable();
+            }
+        });
+    }
+
+    /**
+     * Remembers the display size of the wearable. Artwork is scaled and cropped to this size.
+     */
+    private void setDisplaySize(int width, int height) {
+        if (width <= 0 || height <= 0) {
             return;
         }
 
-        putDataMapRequest.getDataMap().putAsset(
-                Constants.KEY_ARTWORK_ASSET,
-                AssetHelper.createAssetFromBitmap(bitmap)
-        );
+        Log.d(TAG, String.format("setDisplaySize(%d, %d)", width, height));
 
-        sendToWearableInBackground(putDataMapRequest);
+        mPreferences.edit()
+                .putInt(PREF_DISPLAY_WIDTH, width)
+                .putInt(PREF_DISPLAY_HEIGHT, height)
+                .apply();
     }
 
-    public void sendExtensionDataToWearable() {
+    /**
+     * Remembers the snapshot version the wearable can read (0 if it can't read snapshots at all).
+     * Full syncs are sent as a single snapshot if the wearable supports our version.
+     */
+    private void setSnapshotVersion(int version) {
+        Log.d(TAG, String.format("setSnapshotVersion(%d)", version));
+
+        mPreferences.edit()
+                .putInt(PREF_SNAPSHOT_VERSION, version)
+                .apply();
+    }
+
+    /**
+     * Picks the encoding of extension updates from the codec versions the wearable supports.
+     * Updates are written as plain data maps if the wearable does not support our codec.
+     */
+    private void setCodecVersions(List<Integer> versions) {
+        int version = versions != null && versions.contains(ExtensionUpdateCodec.VERSION)
+                ? ExtensionUpdateCodec.VERSION : 0;
+
+        Log.d(TAG, String.format("setCodecVersions(%s): Using codec version %d", versions, version));
+
+        mPreferences.edit()
+                .putInt(PREF_CODEC_VERSION, version)
+                .apply();
+    }
+
+    private boolean isCodecEnabled() {
+        return mPreferences.getInt(PREF_CODEC_VERSION, 0) == ExtensionUpdateCodec.VERSION;
+    }
+
+    private boolean isSnapshotModeEnabled() {
+        return mPreferences.getInt(PREF_SNAPSHOT_VERSION, 0) == ExtensionSnapshot.VERSION;
+    }
+
+    public synchronized void sendExtensionDataToWearable() {
         Log.i(TAG, "sendExtensionDataToWearable()");
 
         List<ExtensionManager.ExtensionWithData> extensions = mExtensionManager.getActiveExtensionsWithData();
 
         Log.d(TAG, "Active extensions with data: " + extensions.size());
 
-        int i = 0;
+        if (isSnapshotModeEnabled()) {
+            sendSnapshotToWearable(createUpdates(extensions));
+        } else {
+            int i = 0;
+            for (ExtensionManager.ExtensionWithData extension : extensions) {
+                sendExtensionData(i, extension);
+                i++;
+            }
+        }
+
+        List<ComponentName> componentNames = getComponentNames(extensions);
+
+        // Remove the data items of extensions that are not active anymore.
+        for (ComponentName componentName : mSyncedExtensions) {
+            if (!componentNames.contains(componentName)) {
+                mSyncState.forget(componentName.flattenToString());
+                deleteFromWearableInBackground(
+                        ExtensionUpdate.getDataPath(componentName.flattenToString()));
+            }
+        }
+
+        mSyncedExtensions = componentNames;
+
+        if (!mStaleDataItemsRemoved) {
+            removeStaleDataItemsInBackground(componentNames);
+        }
+    }
+
+    /**
+     * mSyncedExtensions only knows the extensions synced since the process has been started. Look
+     * at the data items on the wearable once and remove those of extensions that are not active.
+     */
+    private void removeStaleDataItemsInBackground(final List<ComponentName> activeExtensions) {
+        // Same lane as the puts: Puts of extensions that are activated later run after this task.
+        mOutboundScheduler.submit(OutboundScheduler.Lane.STATUS, new Runnable() {
+            @Override
+            public void run() {
+                if (mStaleDataItemsRemoved) {
+                    return;
+                }
+
+                GoogleApiClient googleApiClient = mConnectionManager.getConnectedClient();
+                if (googleApiClient == null) {
+                    Log.e(TAG, "removeStaleDataItemsInBackground(): No Google API Client connection");
+                    return;
+                }
+
+                Set<String> activeComponents = new HashSet<String>();
+                for (ComponentName componentName : activeExtensions) {
+                    activeComponents.add(componentName.flattenToString());
+                }
+
+                String localNodeId = Wearable.NodeApi.getLocalNode(googleApiClient).await()
+                        .getNode().getId();
+
+                DataItemBuffer dataItems = Wearable.DataApi.getDataItems(googleApiClient).await();
+                try {
+                    if (!dataItems.getStatus().isSuccess()) {
+                        Log.e(TAG, "Failed to get the data items - status: " + dataItems.getStatus().getStatusCode());
+                        return;
+                    }
+
+                    for (int i = 0; i < dataItems.getCount(); i++) {
+                        Uri uri = dataItems.get(i).getUri();
+                        String component = ExtensionUpdate.getComponentFromDataPath(uri.getPath());
+
+                        if (component == null || !localNodeId.equals(uri.getHost())
+                                || activeComponents.contains(component)) {
+                            continue;
+                        }
+
+                        Log.d(TAG, "Removing data item of inactive extension: " + component);
+                        Wearable.DataApi.deleteDataItems(googleApiClient, uri).await();
+                    }
+
+                    mStaleDataItemsRemoved = true;
+                } finally {
+                    dataItems.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends only the data of the given extensions to the wearable. If the list of active
+     * extensions or their positions changed since the last sync then all extensions are sent.
+     * In snapshot mode the changes are sent as a snapshot of all extensions.
+     */
+    public synchronized void sendExtensionDataToWearable(Set<ComponentName> changedExtensions) {
+        List<ExtensionManager.ExtensionWithData> extensions = mExtensionManager.getActiveExtensionsWithData();
+
+        if (!mSyncedExtensions.equals(getComponentNames(extensions))) {
+            Log.d(TAG, "Active extensions have changed since last sync. Sending all extensions.");
+            sendExtensionDataToWearable();
+            return;
+        }
+
+        Log.i(TAG, String.format("sendExtensionDataToWearable(changed=%d)", changedExtensions.size()));
+
+        if (isSnapshotModeEnabled()) {
+            // A snapshot does not update the per-extension data items. Writing one of them now could
+            // put the same bytes it already holds (the change has been reverted since the last
+            // snapshot) and the wearable would never be notified. Send changes as snapshots, too;
+            // unchanged extensions only cost their sync hash check.
+            sendSnapshotToWearable(createUpdates(extensions));
+            return;
+        }
+
+        for (int i = 0; i < extensions.size(); i++) {
+            ExtensionManager.ExtensionWithData extension = extensions.get(i);
+
+            if (changedExtensions.contains(extension.listing.componentName)) {
+                sendExtensionData(i, extension);
+            }
+        }
+    }
+
+    private List<ExtensionUpdate> createUpdates(List<ExtensionManager.ExtensionWithData> extensions) {
+        List<ExtensionUpdate> updates = new ArrayList<ExtensionUpdate>(extensions.size());
+
+        for (int i = 0; i < extensions.size(); i++) {
+            updates.add(createUpdate(i, extensions.get(i)));
+        }
+
+        return updates;
+    }
+
+    private static List<ComponentName> getComponentNames(List<ExtensionManager.ExtensionWithData> extensions) {
+        List<ComponentName> componentNames = new ArrayList<ComponentName>(extensions.size());
+
         for (ExtensionManager.ExtensionWithData extension : extensions) {
-            sendExtensionData(i, extension);
-            i++;
+            componentNames.add(extension.listing.componentName);
         }
+
+        return componentNames;
     }
 
-    private void sendToWearable(ExtensionUpdate update) {
-        PutDataMapRequest putDataMapRequest = PutDataMapRequest.create(Constants.PATH_EXTENSION_UPDATE);
-        update.writeToDataMap(putDataMapRequest.getDataMap());
+    private void sendToWearable(final ExtensionUpdate update) {
+        mOutboundScheduler.submit(OutboundScheduler.Lane.STATUS, new Runnable() {
+            @Override
+            public void run() {
+                GoogleApiClient googleApiClient = mConnectionManager.getConnectedClient();
+                if (googleApiClient == null) {
+                    Log.e(TAG, "sendToWearable(): No Google API Client connection");
+                    return;
+                }
+
+                final String component = update.getComponent();
+                final String syncHash = update.getSyncHash();
+                final List<String> nodeIds = getConnectedNodeIds(googleApiClient);
+
+                mSyncState.retainNodes(nodeIds);
+
+                if (mSyncState.isSent(nodeIds, component, syncHash)) {
+                    Log.d(TAG, "Extension has not changed since last sync: " + component);
+                    return;
+                }
 
-        sendToWearableInBackground(putDataMapRequest);
+                // Only attach the icon if not every node has it already.
+                String iconDigest = update.getIconDigest();
+                boolean attachIcon = iconDigest == null
+                        || !mSyncState.isIconAcknowledged(nodeIds, iconDigest);
+
+                PutDataMapRequest putDataMapRequest = PutDataMapRequest.create(update.getDataPath());
+                if (isCodecEnabled()) {
+                    update.writeEncodedToDataMap(putDataMapRequest.getDataMap(), attachIcon);
+                } else {
+                    update.writeToDataMap(putDataMapRequest.getDataMap(), attachIcon);
+                }
+
+                PutDataRequest request = putDataMapRequest.asPutDataRequest();
+                Wearable.DataApi.putDataItem(googleApiClient, request).setResultCallback(new ResultCallback<DataApi.DataItemResult>() {
+                    @Override
+                    public void onResult(DataApi.DataItemResult dataItemResult) {
+                        if (dataItemResult.getStatus().isSuccess()) {
+                            mSyncState.markSent(nodeIds, component, syncHash);
+                        } else {
+                            Log.e(TAG, "Failed to set the data - status: " + dataItemResult.getStatus().getStatusCode());
+                        }
+                    }
+                });
+            }
+        });
     }
 
-    private void sendToWearableInBackground(final PutDataMapRequest putDataMapRequest) {
-        mExecutorService.submit(new Runnable() {
+    /**
+     * Sends the state of all active extensions as one data item. Only the icons that not every
+     * node has acknowledged yet are attached.
+     */
+    private void sendSnapshotToWearable(final List<ExtensionUpdate> updates) {
+        mOutboundScheduler.submit(OutboundScheduler.Lane.STATUS, new Runnable() {
             @Override
             public void run() {
-                if (!ConnectionUtil.validateConnection(mGoogleApiClient)) {
-                    Log.e(TAG, "sendToWearableInBackground(): No Google API Client connection");
+                GoogleApiClient googleApiClient = mConnectionManager.getConnectedClient();
+                if (googleApiClient == null) {
+                    Log.e(TAG, "sendSnapshotToWearable(): No Google API Client connection");
+                    return;
+                }
+
+                final List<String> nodeIds = getConnectedNodeIds(googleApiClient);
+
+                mSyncState.retainNodes(nodeIds);
+
+                final List<String> syncHashes = new ArrayList<String>(updates.size());
+                Set<String> attachIcons = new HashSet<String>();
+                boolean changed = false;
+
+                for (ExtensionUpdate update : updates) {
+                    String syncHash = update.getSyncHash();
+                    syncHashes.add(syncHash);
+
+                    if (!mSyncState.isSent(nodeIds, update.getComponent(), syncHash)) {
+                        changed = true;
+                    }
+
+                    String iconDigest = update.getIconDigest();
+                    if (iconDigest != null && !mSyncState.isIconAcknowledged(nodeIds, iconDigest)) {
+                        attachIcons.add(iconDigest);
+                    }
+                }
+
+                if (!changed) {
+                    Log.d(TAG, "No extension has changed since last sync");
                     return;
                 }
 
+                Log.d(TAG, String.format("Sending snapshot (extensions=%d, icons=%d)",
+                        updates.size(), attachIcons.size()));
+
+                PutDataMapRequest putDataMapRequest = PutDataMapRequest.create(Constants.PATH_EXTENSION_SNAPSHOT);
+                new ExtensionSnapshot(updates).writeToDataMap(putDataMapRequest.getDataMap(), attachIcons);
+
                 PutDataRequest request = putDataMapRequest.asPutDataRequest();
-                Wearable.DataApi.putDataItem(mGoogleApiClient, request).setResultCallback(new ResultCallback<DataApi.DataItemResult>() {
+                Wearable.DataApi.putDataItem(googleApiClient, request).setResultCallback(new ResultCallback<DataApi.DataItemResult>() {
                     @Override
                     public void onResult(DataApi.DataItemResult dataItemResult) {
-                        if (!dataItemResult.getStatus().isSuccess()) {
+                        if (dataItemResult.getStatus().isSuccess()) {
+                            for (int i = 0; i < updates.size(); i++) {
+                                mSyncState.markSent(nodeIds, updates.get(i).getComponent(), syncHashes.get(i));
+                            }
+                        } else {
                             Log.e(TAG, "Failed to set the data - status: " + dataItemResult.getStatus().getStatusCode());
                         }
                     }
@@ -206,4 +612,111 @@ public class WearableManager {
             }
         });
     }
+
+    /**
+     * Forgets what has been sent to the given node, e.g. because it has (re)connected. The next
+     * sync will send all the data to this node again.
+     */
+    public void resetSyncState(String nodeId) {
+        mSyncState.reset(nodeId);
+    }
+
+    /**
+     * Remembers that the node has stored the icons with the given digests. Updates sent later only
+     * reference these icons instead of attaching them again. Runs on the control lane, so that
+     * queued updates already benefit from it.
+     */
+    public void acknowledgeIcons(final String nodeId, final List<String> digests) {
+        Log.d(TAG, String.format("Node %s acknowledged %d icons", nodeId, digests.size()));
+
+        mOutboundScheduler.submit(OutboundScheduler.Lane.CONTROL, new Runnable() {
+            @Override
+            public void run() {
+                mSyncState.acknowledgeIcons(nodeId, digests);
+            }
+        });
+    }
+
+    /**
+     * The node received an update referencing an icon it does not have: Send all extensions again,
+     * this time with the icon attached.
+     */
+    public void onIconMissing(String nodeId, String digest) {
+        Log.d(TAG, String.format("Node %s is missing icon %s", nodeId, digest));
+
+        mSyncState.forgetIcon(nodeId, digest);
+        sendExtensionDataToWearable();
+    }
+
+    /**
+     * Returns the scheduler sending data to the wearable, e.g. to read its lane metrics.
+     */
+    public OutboundScheduler getOutboundScheduler() {
+        return mOutboundScheduler;
+    }
+
+    /**
+     * Needs to be called on a background thread.
+     */
+    private static List<String> getConnectedNodeIds(GoogleApiClient googleApiClient) {
+        List<String> nodeIds = new ArrayList<String>();
+
+        for (Node node : Wearable.NodeApi.getConnectedNodes(googleApiClient).await().getNodes()) {
+            nodeIds.add(node.getId());
+        }
+
+        return nodeIds;
+    }
+
+    /**
+     * Needs to be called on a background thread.
+     */
+    private void putDataItem(PutDataMapRequest putDataMapRequest) {
+        GoogleApiClient googleApiClient = mConnectionManager.getConnectedClient();
+        if (googleApiClient == null) {
+            Log.e(TAG, "putDataItem(): No Google API Client connection");
+            return;
+        }
+
+        PutDataRequest request = putDataMapRequest.asPutDataRequest();
+        Wearable.DataApi.putDataItem(googleApiClient, request).setResultCallback(new ResultCallback<DataApi.DataItemResult>() {
+            @Override
+            public void onResult(DataApi.DataItemResult dataItemResult) {
+                if (!dataItemResult.getStatus().isSuccess()) {
+                    Log.e(TAG, "Failed to set the data - status: " + dataItemResult.getStatus().getStatusCode());
+                }
+            }
+        });
+    }
+
+    /**
+     * Deletes are submitted to the status lane: They must keep their order relative to the updates
+     * of the same path, otherwise a delete could overtake an earlier put and be undone by it.
+     */
+    private void deleteFromWearableInBackground(final String path) {
+        mOutboundScheduler.submit(OutboundScheduler.Lane.STATUS, new Runnable() {
+            @Override
+            public void run() {
+                GoogleApiClient googleApiClient = mConnectionManager.getConnectedClient();
+                if (googleApiClient == null) {
+                    Log.e(TAG, "deleteFromWearableInBackground(): No Google API Client connection");
+                    return;
+                }
+
+                Uri uri = new Uri.Builder()
+                        .scheme(PutDataRequest.WEAR_URI_SCHEME)
+                        .path(path)
+                        .build();
+
+                Wearable.DataApi.deleteDataItems(googleApiClient, uri).setResultCallback(new ResultCallback<DataApi.DeleteDataItemsResult>() {
+                    @Override
+                    public void onResult(DataApi.DeleteDataItemsResult deleteDataItemsResult) {
+                        if (!deleteDataItemsResult.getStatus().isSuccess()) {
+                            Log.e(TAG, "Failed to delete the data - status: " + deleteDataItemsResult.getStatus().getStatusCode());
+                        }
+                    }
+                });
+            }
+        });
+    }
 }
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2014 Sebastian Kaspari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.androidzeitgeist.dashwatch.dashclock;
+
+import android.content.ContentResolver;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Content observers shared by all extensions. Every URI is observed only once, no matter how many
+ * extensions watch it, and changes are forwarded to all of them.
+ *
+ * Busy providers notify many changes per second. Changes of a URI are forwarded at most once per
+ * {@link #MIN_INTERVAL_MILLIS}: The first change is forwarded at once, further changes within the
+ * interval are collapsed into one that is forwarded when the interval has passed.
+ *
+ * Change notifications are received on a background handler; clients are called on the client
+ * handler.
+ */
+public class ContentObserverRegistry {
+    private static final String TAG = "DashWatch/ContentObserverRegistry";
+
+    private static final long MIN_INTERVAL_MILLIS = 2000;
+
+    public static interface Client {
+        void onContentChanged();
+    }
+
+    private final ContentResolver mContentResolver;
+    private final Handler mObserverHandler;
+    private final Handler mClientHandler;
+
+    private final Map<Uri, UriObserver> mObservers = new HashMap<Uri, UriObserver>();
+
+    private class UriObserver extends ContentObserver implements Runnable {
+        final Uri uri;
+        final Set<Client> clients = new HashSet<Client>();
+
+        /**
+         * Only accessed on the observer handler.
+         */
+        long lastDispatch;
+        boolean dispatchScheduled;
+
+        UriObserver(Uri uri) {
+            super(mObserverHandler);
+            this.uri = uri;
+        }
+
+        @Override
+        public void onChange(boolean selfChange) {
+            if (dispatchScheduled) {
+                // Collapsed into the scheduled dispatch.
+                return;
+            }
+
+            long now = SystemClock.uptimeMillis();
+            if (now - lastDispatch >= MIN_INTERVAL_MILLIS) {
+                run();
+            } else {
+                dispatchScheduled = true;
+                mObserverHandler.postAtTime(this, lastDispatch + MIN_INTERVAL_MILLIS);
+            }
+        }
+
+        /**
+         * Forwards the change to all clients.
+         */
+        @Override
+        public void run() {
+            dispatchScheduled = false;
+            lastDispatch = SystemClock.uptimeMillis();
+
+            final List<Client> clientsToNotify;
+            synchronized (ContentObserverRegistry.this) {
+                clientsToNotify = new ArrayList<Client>(clients);
+            }
+
+            mClientHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (Client client : clientsToNotify) {
+                        client.onContentChanged();
+                    }
+                }
+            });
+        }
+    }
+
+    public ContentObserverRegistry(ContentResolver contentResolver, Handler observerHandler,
+                                   Handler clientHandler) {
+        mContentResolver = contentResolver;
+        mObserverHandler = observerHandler;
+        mClientHandler = clientHandler;
+    }
+
+    /**
+     * Notifies the client about changes of the URI and its descendants.
+     */
+    public synchronized void register(Uri uri, Client client) {
+        UriObserver observer = mObservers.get(uri);
+
+        if (observer == null) {
+            observer = new UriObserver(uri);
+            mObservers.put(uri, observer);
+            mContentResolver.registerContentObserver(uri, true, observer);
+
+            Log.d(TAG, "Observing " + uri + " (" + mObservers.size() + " URIs)");
+        }
+
+        observer.clients.add(client);
+    }
+
+    /**
+     * Stops notifying the client about changes of any URI. URIs no other client is interested in
+     * are not observed anymore.
+     */
+    public synchronized void unregisterAll(Client client) {
+        Iterator<UriObserver> iterator = mObservers.values().iterator();
+
+        while (iterator.hasNext()) {
+            UriObserver observer = iterator.next();
+
+            if (observer.clients.remove(client) && observer.clients.isEmpty()) {
+                mContentResolver.unregisterContentObserver(observer);
+                mObserverHandler.removeCallbacks(observer);
+                iterator.remove();
+
+                Log.d(TAG, "Stopped observing " + observer.uri);
+            }
+        }
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (C) 2014 Sebastian Kaspari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.androidzeitgeist.dashwatch.dashclock;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Operations of an extension that could not be executed and should be retried once the extension
+ * is connected (again).
+ *
+ * The queue is bounded: If it is full the oldest operation is dropped. An operation with a
+ * collapse token replaces a queued operation with the same token. Failed operations are retried
+ * with an exponential backoff and dropped after {@link #MAX_ATTEMPTS} failed attempts.
+ *
+ * All methods are thread-safe.
+ */
+public class DeferredOperationQueue {
+    private static final String TAG = "DashWatch/DeferredOperationQueue";
+
+    private static final int MAX_SIZE = 32;
+    static final int MAX_ATTEMPTS = 5;
+
+    private static final long MIN_BACKOFF_MILLIS = 1000;
+    private static final long MAX_BACKOFF_MILLIS = 60 * 1000;
+
+    private static final Random sRandom = new Random();
+
+    public static class Entry {
+        public final Object collapseToken;
+        public final ExtensionHost.Operation operation;
+
+        /**
+         * The number of failed attempts to execute this operation.
+         */
+        public final int failedAttempts;
+
+        /**
+         * Uptime (See {@link SystemClock#uptimeMillis()}) at which the operation should be
+         * executed again at the earliest.
+         */
+        public final long notBeforeUptimeMillis;
+
+        /**
+         * Delay of the operation relative to the time the queue is drained, e.g. to keep the
+         * staggering of a refresh.
+         */
+        public final long delayMillis;
+
+        Entry(Object collapseToken, ExtensionHost.Operation operation,
+              int failedAttempts, long notBeforeUptimeMillis, long delayMillis) {
+            this.collapseToken = collapseToken;
+            this.operation = operation;
+            this.failedAttempts = failedAttempts;
+            this.notBeforeUptimeMillis = notBeforeUptimeMillis;
+            this.delayMillis = delayMillis;
+        }
+    }
+
+    /**
+     * Keyed by collapse token; operations without token get a key of their own.
+     */
+    private final LinkedHashMap<Object, Entry> mEntries = new LinkedHashMap<Object, Entry>();
+
+    private int mAddedCount;
+    private int mReplacedCount;
+    private int mOverflowCount;
+    private int mGaveUpCount;
+    private int mRetriedCount;
+    private int mRetrySucceededCount;
+
+    /**
+     * Adds an operation that failed for the given number of times.
+     *
+     * @return false if the operation has been dropped because it failed too often.
+     */
+    public synchronized boolean add(Object collapseToken, ExtensionHost.Operation operation,
+                                    int failedAttempts) {
+        return add(collapseToken, operation, failedAttempts, 0);
+    }
+
+    /**
+     * Adds an operation that should run the given delay after the queue has been drained.
+     *
+     * @return false if the operation has been dropped because it failed too often.
+     */
+    public synchronized boolean add(Object collapseToken, ExtensionHost.Operation operation,
+                                    int failedAttempts, long delayMillis) {
+        if (shouldGiveUp(failedAttempts)) {
+            return false;
+        }
+
+        Object key = collapseToken != null ? collapseToken : new Object();
+        Entry entry = new Entry(collapseToken, operation, failedAttempts,
+                SystemClock.uptimeMillis() + getBackoffMillis(failedAttempts), delayMillis);
+
+        if (mEntries.put(key, entry) != null) {
+            mReplacedCount++;
+            return true;
+        }
+
+        mAddedCount++;
+
+        if (mEntries.size() > MAX_SIZE) {
+            Iterator<Map.Entry<Object, Entry>> iterator = mEntries.entrySet().iterator();
+            iterator.next();
+            iterator.remove();
+
+            mOverflowCount++;
+            Log.w(TAG, String.format("Queue is full. Dropped oldest operation (dropped=%d).",
+                    mOverflowCount));
+        }
+
+        return true;
+    }
+
+    /**
+     * Returns the uptime at which an operation that failed for the given number of times should be
+     * retried while the service is still connected, or -1 if it failed too often and should be
+     * dropped.
+     */
+    public synchronized long getRetryUptimeMillis(int failedAttempts) {
+        if (shouldGiveUp(failedAttempts)) {
+            return -1;
+        }
+
+        mRetriedCount++;
+        return SystemClock.uptimeMillis() + getBackoffMillis(failedAttempts);
+    }
+
+    /**
+     * Removes and returns all queued operations in the order they have been added.
+     */
+    public synchronized List<Entry> drain() {
+        List<Entry> entries = new ArrayList<Entry>(mEntries.values());
+        mEntries.clear();
+
+        for (Entry entry : entries) {
+            if (entry.failedAttempts > 0) {
+                mRetriedCount++;
+            }
+        }
+
+        return entries;
+    }
+
+    /**
+     * Records that an operation succeeded after it had failed before.
+     */
+    public synchronized void onRetrySucceeded() {
+        mRetrySucceededCount++;
+    }
+
+    public synchronized int size() {
+        return mEntries.size();
+    }
+
+    /**
+     * Returns a summary of the counters of this queue for logging.
+     */
+    public synchronized String getStats() {
+        return String.format("size=%d, added=%d, replaced=%d, overflow=%d, gaveUp=%d, "
+                        + "retried=%d, retrySucceeded=%d",
+                mEntries.size(), mAddedCount, mReplacedCount, mOverflowCount, mGaveUpCount,
+                mRetriedCount, mRetrySucceededCount);
+    }
+
+    private boolean shouldGiveUp(int failedAttempts) {
+        if (failedAttempts < MAX_ATTEMPTS) {
+            return false;
+        }
+
+        mGaveUpCount++;
+        Log.w(TAG, String.format("Operation failed %d times. Giving up (gave up=%d).",
+                failedAttempts, mGaveUpCount));
+        return true;
+    }
+
+    /**
+     * Exponential backoff with jitter: The n-th retry waits between half and the full backoff of
+     * MIN_BACKOFF_MILLIS * 2^(n-1), but at most MAX_BACKOFF_MILLIS.
+     */
+    private static long getBackoffMillis(int failedAttempts) {
+        if (failedAttempts == 0) {
+            return 0;
+        }
+
+        long backoff = Math.min(MAX_BACKOFF_MILLIS,
+                MIN_BACKOFF_MILLIS << Math.min(failedAttempts - 1, 16));
+
+        synchronized (sRandom) {
+            return backoff / 2 + (long) (sRandom.nextDouble() * (backoff / 2));
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2014 Sebastian Kaspari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.androidzeitgeist.dashwatch.dashclock;
+
+import android.content.ComponentName;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.google.android.apps.dashclock.api.ExtensionData;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Writes extension data to the {@link ExtensionDataStore} in the background. Changes of the same extension are
+ * coalesced and written at most {@link #FLUSH_DELAY_MILLIS} after the first change, so that
+ * extensions publishing updates in bursts do not cause a disk write per update.
+ */
+public class ExtensionDataPersister {
+    private static final String TAG = "DashWatch/ExtensionDataPersister";
+
+    private static final long FLUSH_DELAY_MILLIS = 2000;
+
+    private final ExtensionDataStore mStore;
+    private final Handler mHandler;
+
+    /**
+     * Extensions whose data has changed but has not been written yet. A null value means that the
+     * data of the extension should be removed.
+     */
+    private final Map<ComponentName, ExtensionData> mDirtyData
+            = new LinkedHashMap<ComponentName, ExtensionData>();
+    private boolean mFlushScheduled;
+
+    private final Object mWriteLock = new Object();
+
+    /**
+     * Data of an extension that has not been written yet.
+     */
+    public static class Pending {
+        /**
+         * The data or null if the data of the extension will be removed.
+         */
+        public final ExtensionData data;
+
+        Pending(ExtensionData data) {
+            this.data = data;
+        }
+    }
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    public ExtensionDataPersister(ExtensionDataStore store) {
+        mStore = store;
+
+        HandlerThread thread = new HandlerThread("ExtensionDataPersister");
+        thread.start();
+        mHandler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Schedules writing the data of the extension.
+     */
+    public void put(ComponentName componentName, ExtensionData data) {
+        markDirty(componentName, data);
+    }
+
+    /**
+     * Schedules removing the data of the extension.
+     */
+    public void remove(ComponentName componentName) {
+        markDirty(componentName, null);
+    }
+
+    /**
+     * Returns the changes of the extension that have not been written yet or null if there are
+     * none. Changes are pending until they have been written, so the store never has to be read
+     * while it is written.
+     */
+    public synchronized Pending getPending(ComponentName componentName) {
+        if (!mDirtyData.containsKey(componentName)) {
+            return null;
+        }
+
+        return new Pending(mDirtyData.get(componentName));
+    }
+
+    private synchronized void markDirty(ComponentName componentName, ExtensionData data) {
+        mDirtyData.put(componentName, data);
+
+        // Do not postpone a scheduled flush: Data is written at most FLUSH_DELAY_MILLIS after the
+        // first change, even if the extension keeps on publishing updates.
+        if (!mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushRunnable, FLUSH_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Writes all pending changes now. Blocks until the changes have been written.
+     */
+    public void flush() {
+        // Only one flush at a time: Otherwise older data could be written after newer data.
+        synchronized (mWriteLock) {
+            Map<ComponentName, ExtensionData> dirtyData;
+
+            synchronized (this) {
+                mHandler.removeCallbacks(mFlushRunnable);
+                mFlushScheduled = false;
+
+                if (mDirtyData.isEmpty()) {
+                    return;
+                }
+
+                dirtyData = new LinkedHashMap<ComponentName, ExtensionData>(mDirtyData);
+            }
+
+            if (!mStore.write(dirtyData)) {
+                // Keep the changes pending and try again later.
+                synchronized (this) {
+                    if (!mFlushScheduled) {
+                        mFlushScheduled = true;
+                        mHandler.postDelayed(mFlushRunnable, FLUSH_DELAY_MILLIS);
+                    }
+                }
+                return;
+            }
+
+            synchronized (this) {
+                // Keep the changes that have been made while writing.
+                for (Map.Entry<ComponentName, ExtensionData> entry : dirtyData.entrySet()) {
+                    ComponentName componentName = entry.getKey();
+
+                    if (mDirtyData.containsKey(componentName)
+                            && mDirtyData.get(componentName) == entry.getValue()) {
+                        mDirtyData.remove(componentName);
+                    }
+                }
+            }
+
+            Log.d(TAG, String.format("Flushed data of %d extensions", dirtyData.size()));
+        }
+    }
+}
@@ -0,0 +1,553 @@
+/*
+ * Copyright (C) 2014 Sebastian Kaspari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.androidzeitgeist.dashwatch.dashclock;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.google.android.apps.dashclock.api.ExtensionData;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URISyntaxException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Stores the last known data of each extension in one binary file that changes are appended to.
+ * The file is memory-mapped and indexed on first access; the data of an extension is only decoded
+ * when it is requested. The file is compacted once it mostly consists of outdated records.
+ *
+ * Data stored by older versions in the "extension_data" preferences is migrated once.
+ *
+ * Writes only hold the lock of the store while they update the in-memory state: Reads never wait
+ * for a write to be synced to disk. Writes are serialized by a lock of their own.
+ */
+public class ExtensionDataStore {
+    private static final String TAG = "DashWatch/ExtensionDataStore";
+
+    private static final String FILE_NAME = "extension_data.bin";
+    private static final String LEGACY_PREFERENCE_NAME = "extension_data";
+
+    private static final int MAGIC = 0x44574544; // "DWED"
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 5;
+
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_REMOVE = 2;
+
+    /**
+     * Compact if the file has this many more records than there are extensions in the store.
+     */
+    private static final int COMPACTION_THRESHOLD = 64;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final Context mApplicationContext;
+    private final File mFile;
+
+    /**
+     * Held while writing to the file. Acquired before the lock of the store, never after it.
+     */
+    private final Object mWriteLock = new Object();
+
+    /**
+     * True once the file has been indexed and the legacy data has been migrated.
+     */
+    private volatile boolean mLoaded;
+
+    private ByteBuffer mBuffer;
+
+    /**
+     * Offsets of the records in the mapped file that have not been decoded yet.
+     */
+    private final Map<String, Integer> mOffsets = new HashMap<String, Integer>();
+
+    /**
+     * Decoded data and data written since the file has been mapped.
+     */
+    private final Map<String, ExtensionData> mData = new HashMap<String, ExtensionData>();
+
+    private int mRecordCount;
+
+    public ExtensionDataStore(Context context) {
+        mApplicationContext = context.getApplicationContext();
+        mFile = new File(mApplicationContext.getFilesDir(), FILE_NAME);
+    }
+
+    /**
+     * Returns the stored data of the extension or null if there is no data.
+     */
+    public ExtensionData get(ComponentName componentName) {
+        load();
+
+        synchronized (this) {
+            return decode(componentName.flattenToString());
+        }
+    }
+
+    /**
+     * Must be called with the lock of the store held.
+     */
+    private ExtensionData decode(String key) {
+        ExtensionData data = mData.get(key);
+        if (data != null) {
+            return data;
+        }
+
+        Integer offset = mOffsets.remove(key);
+        if (offset == null) {
+            return null;
+        }
+
+        try {
+            ByteBuffer record = mBuffer.duplicate();
+            record.position(offset);
+            data = readData(record);
+            mData.put(key, data);
+            return data;
+        } catch (BufferUnderflowException e) {
+            Log.w(TAG, "Corrupt record for " + key, e);
+            return null;
+        }
+    }
+
+    /**
+     * Writes the given changes to the file. A null value removes the data of the extension.
+     * Blocks until the changes have been written.
+     *
+     * @return false if the changes could not be written to the file. They are still returned by
+     *         {@link #get(ComponentName)} until the process dies.
+     */
+    public boolean write(Map<ComponentName, ExtensionData> changes) {
+        load();
+
+        synchronized (mWriteLock) {
+            return writeChanges(changes);
+        }
+    }
+
+    /**
+     * Must be called with the write lock held.
+     */
+    private boolean writeChanges(Map<ComponentName, ExtensionData> changes) {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(byteStream);
+
+        synchronized (this) {
+            try {
+                for (Map.Entry<ComponentName, ExtensionData> entry : changes.entrySet()) {
+                    String key = entry.getKey().flattenToString();
+
+                    writeRecord(out, key, entry.getValue());
+
+                    mOffsets.remove(key);
+                    if (entry.getValue() != null) {
+                        mData.put(key, entry.getValue());
+                    } else {
+                        mData.remove(key);
+                    }
+                }
+                out.flush();
+            } catch (IOException e) {
+                AssertionError error = new AssertionError("Writing to memory failed");
+                error.initCause(e);
+                throw error;
+            }
+        }
+
+        try {
+            append(byteStream.toByteArray());
+        } catch (IOException e) {
+            Log.e(TAG, "Could not write extension data", e);
+            return false;
+        }
+
+        boolean compact;
+        synchronized (this) {
+            mRecordCount += changes.size();
+            compact = mRecordCount > mData.size() + mOffsets.size() + COMPACTION_THRESHOLD;
+        }
+
+        if (compact) {
+            compact();
+        }
+
+        return true;
+    }
+
+    /**
+     * Maps and indexes the file and migrates the legacy data on first access.
+     */
+    private void load() {
+        if (mLoaded) {
+            return;
+        }
+
+        synchronized (mWriteLock) {
+            if (mLoaded) {
+                return;
+            }
+
+            boolean migrate;
+            synchronized (this) {
+                migrate = index();
+            }
+
+            if (migrate) {
+                migrateFromPreferences();
+            }
+
+            mLoaded = true;
+        }
+    }
+
+    /**
+     * Maps and indexes the file. Must be called with the lock of the store held.
+     *
+     * @return true if there is no valid file and the legacy data should be migrated.
+     */
+    private boolean index() {
+        if (!mFile.exists()) {
+            return true;
+        }
+
+        long start = System.currentTimeMillis();
+
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "rw");
+            FileChannel channel = file.getChannel();
+
+            mBuffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+            int validLength = index(mBuffer);
+
+            if (validLength < channel.size()) {
+                // The last append has been interrupted: Drop the incomplete record.
+                Log.w(TAG, String.format("Truncating store from %d to %d bytes", channel.size(), validLength));
+                channel.truncate(validLength);
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not load extension data. Starting with an empty store.", e);
+            mBuffer = null;
+            mOffsets.clear();
+            mRecordCount = 0;
+            mFile.delete();
+
+            // The first write may have failed before the legacy data could be cleared.
+            return true;
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // Don't care..
+                }
+            }
+        }
+
+        Log.d(TAG, String.format("Indexed %d records in %d ms",
+                mRecordCount, System.currentTimeMillis() - start));
+
+        return false;
+    }
+
+    /**
+     * Reads the component of every record and remembers the offset of the latest record of each
+     * component. Returns the length of the valid part of the file.
+     */
+    private int index(ByteBuffer buffer) throws IOException {
+        if (buffer.limit() < HEADER_LENGTH || buffer.getInt(0) != MAGIC || buffer.get(4) != VERSION) {
+            throw new IOException("Unknown file format");
+        }
+
+        int position = HEADER_LENGTH;
+
+        while (position + 4 <= buffer.limit()) {
+            int length = buffer.getInt(position);
+            int end = position + 4 + length;
+
+            if (length <= 0 || end > buffer.limit()) {
+                break;
+            }
+
+            ByteBuffer record = buffer.duplicate();
+            record.position(position + 4);
+            record.limit(end);
+
+            try {
+                byte type = record.get();
+                String key = readString(record);
+
+                if (type == RECORD_PUT) {
+                    mOffsets.put(key, record.position());
+                } else {
+                    mOffsets.remove(key);
+                }
+            } catch (BufferUnderflowException e) {
+                break;
+            }
+
+            mRecordCount++;
+            position = end;
+        }
+
+        return position;
+    }
+
+    private void append(byte[] records) throws IOException {
+        long previousLength = mFile.exists() ? mFile.length() : 0;
+        boolean writeHeader = previousLength == 0;
+
+        try {
+            FileOutputStream stream = new FileOutputStream(mFile, true);
+            try {
+                if (writeHeader) {
+                    stream.write(createHeader());
+                }
+                stream.write(records);
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            // Drop what has been written partially; later records are appended after it otherwise.
+            truncate(previousLength);
+            throw e;
+        }
+    }
+
+    private void truncate(long length) {
+        RandomAccessFile file = null;
+        try {
+            file = new RandomAccessFile(mFile, "rw");
+            file.setLength(length);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not truncate extension data file", e);
+        } finally {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    // Don't care..
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrites the file with only the latest record of each extension. Must be called with the
+     * write lock held.
+     */
+    private void compact() {
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(byteStream);
+        int recordCount;
+
+        synchronized (this) {
+            // Decode everything that is still only in the mapped file.
+            for (String key : mOffsets.keySet().toArray(new String[mOffsets.size()])) {
+                decode(key);
+            }
+
+            try {
+                out.write(createHeader());
+                for (Map.Entry<String, ExtensionData> entry : mData.entrySet()) {
+                    writeRecord(out, entry.getKey(), entry.getValue());
+                }
+                out.flush();
+            } catch (IOException e) {
+                AssertionError error = new AssertionError("Writing to memory failed");
+                error.initCause(e);
+                throw error;
+            }
+
+            recordCount = mData.size();
+        }
+
+        File tempFile = new File(mFile.getPath() + ".tmp");
+
+        try {
+            FileOutputStream stream = new FileOutputStream(tempFile);
+            try {
+                stream.write(byteStream.toByteArray());
+                stream.getFD().sync();
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Could not compact extension data", e);
+            tempFile.delete();
+            return;
+        }
+
+        if (!tempFile.renameTo(mFile)) {
+            Log.e(TAG, "Could not replace extension data file");
+            tempFile.delete();
+            return;
+        }
+
+        synchronized (this) {
+            Log.d(TAG, String.format("Compacted %d records to %d", mRecordCount, recordCount));
+
+            // mData is only changed by writers; it still holds exactly the compacted records.
+            mRecordCount = recordCount;
+            mBuffer = null;
+        }
+    }
+
+    /**
+     * Must be called with the write lock held.
+     */
+    private void migrateFromPreferences() {
+        SharedPreferences preferences = mApplicationContext.getSharedPreferences(LEGACY_PREFERENCE_NAME, 0);
+        Map<String, ?> values = preferences.getAll();
+
+        if (values.isEmpty()) {
+            return;
+        }
+
+        Map<ComponentName, ExtensionData> changes = new HashMap<ComponentName, ExtensionData>();
+
+        for (Map.Entry<String, ?> entry : values.entrySet()) {
+            ComponentName componentName = ComponentName.unflattenFromString(entry.getKey());
+            if (componentName == null || !(entry.getValue() instanceof String)
+                    || TextUtils.isEmpty((String) entry.getValue())) {
+                continue;
+            }
+
+            try {
+                ExtensionData data = new ExtensionData();
+                data.deserialize((JSONObject) new JSONTokener((String) entry.getValue()).nextValue());
+                changes.put(componentName, data);
+            } catch (JSONException e) {
+                Log.w(TAG, "Could not migrate extension data of " + componentName, e);
+            }
+        }
+
+        // Only drop the legacy data once it has been synced to the file.
+        if (!writeChanges(changes)) {
+            Log.w(TAG, "Could not migrate extension data. Keeping the preferences.");
+            return;
+        }
+
+        preferences.edit().clear().commit();
+
+        Log.d(TAG, String.format("Migrated data of %d extensions", changes.size()));
+    }
+
+    private static byte[] createHeader() {
+        return ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC).put((byte) VERSION).array();
+    }
+
+    private static void writeRecord(DataOutputStream out, String key, ExtensionData data) throws IOException {
+        ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        DataOutputStream record = new DataOutputStream(recordBytes);
+
+        record.writeByte(data != null ? RECORD_PUT : RECORD_REMOVE);
+        writeString(record, key);
+
+        if (data != null) {
+            record.writeBoolean(data.visible());
+            record.writeInt(data.icon());
+            writeString(record, data.iconUri() != null ? data.iconUri().toString() : null);
+            writeString(record, data.status());
+            writeString(record, data.expandedTitle());
+            writeString(record, data.expandedBody());
+            writeString(record, data.clickIntent() != null ? data.clickIntent().toUri(0) : null);
+            writeString(record, data.contentDescription());
+        }
+
+        record.flush();
+
+        out.writeInt(recordBytes.size());
+        recordBytes.writeTo(out);
+    }
+
+    private static ExtensionData readData(ByteBuffer record) {
+        ExtensionData data = new ExtensionData();
+
+        data.visible(record.get() != 0);
+        data.icon(record.getInt());
+
+        String iconUri = readString(record);
+        data.iconUri(iconUri != null ? Uri.parse(iconUri) : null);
+
+        data.status(readString(record));
+        data.expandedTitle(readString(record));
+        data.expandedBody(readString(record));
+
+        String clickIntent = readString(record);
+        if (clickIntent != null) {
+            try {
+                data.clickIntent(Intent.parseUri(clickIntent, 0));
+            } catch (URISyntaxException e) {
+                Log.w(TAG, "Unable to parse click intent", e);
+            }
+        }
+
+        data.contentDescription(readString(record));
+
+        return data;
+    }
+
+    /**
+     * Strings are written as length (-1 for null) and UTF-8 bytes.
+     */
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+
+        byte[] bytes = value.getBytes(UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, UTF_8);
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2014 Sebastian Kaspari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.androidzeitgeist.dashwatch.dashclock;
+
+import android.content.ComponentName;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps track of misbehaving extensions. An extension that repeatedly fails to bind, disconnects
+ * too often or throws on too many calls is quarantined: The circuit of the extension opens and
+ * the host does not bind to or call the extension until a cooldown has passed.
+ *
+ * After the cooldown the extension gets another chance. If it fails again the circuit opens with
+ * a doubled cooldown; if a call succeeds the extension is considered healthy again.
+ *
+ * All methods are thread-safe.
+ */
+public class ExtensionHealthTracker {
+    private static final String TAG = "DashWatch/ExtensionHealthTracker";
+
+    private static final int MAX_CONSECUTIVE_BIND_FAILURES = 3;
+
+    private static final int MAX_DISCONNECTS_PER_HOUR = 5;
+    private static final long HOUR_MILLIS = 60 * 60 * 1000;
+
+    /**
+     * The circuit opens if at least this many calls have been made since the last reset and at
+     * least half of them failed.
+     */
+    private static final int MIN_CALLS_FOR_FAILURE_RATE = 10;
+    private static final float MAX_FAILURE_RATE = 0.5f;
+
+    private static final long MIN_COOLDOWN_MILLIS = 5 * 60 * 1000;
+    private static final long MAX_COOLDOWN_MILLIS = 6 * HOUR_MILLIS;
+
+    private static class Health {
+        int consecutiveBindFailures;
+        final LinkedList<Long> disconnects = new LinkedList<Long>();
+        int calls;
+        int failedCalls;
+
+        /**
+         * Number of times the circuit has been opened without the extension recovering in between.
+         */
+        int trips;
+
+        /**
+         * Elapsed realtime until which the circuit is open; 0 if it is closed.
+         */
+        long openUntil;
+
+        /**
+         * True once the cooldown has passed and the extension has not succeeded yet.
+         */
+        boolean halfOpen;
+    }
+
+    private final Map<ComponentName, Health> mHealth = new HashMap<ComponentName, Health>();
+
+    /**
+     * Returns true if the host may bind to and call the extension.
+     */
+    public synchronized boolean isAllowed(ComponentName componentName) {
+        Health health = mHealth.get(componentName);
+        if (health == null || health.openUntil == 0) {
+            return true;
+        }
+
+        if (SystemClock.elapsedRealtime() < health.openUntil) {
+            return false;
+        }
+
+        Log.i(TAG, "Cooldown of " + componentName.flattenToShortString() + " has passed");
+
+        health.openUntil = 0;
+        health.halfOpen = true;
+        return true;
+    }
+
+    public synchronized boolean isQuarantined(ComponentName componentName) {
+        Health health = mHealth.get(componentName);
+        return health != null && SystemClock.elapsedRealtime() < health.openUntil;
+    }
+
+    /**
+     * Returns the extensions whose circuit is currently open.
+     */
+    public synchronized Set<ComponentName> getQuarantinedExtensions() {
+        long now = SystemClock.elapsedRealtime();
+
+        Set<ComponentName> quarantined = new HashSet<ComponentName>();
+        for (Map.Entry<ComponentName, Health> entry : mHealth.entrySet()) {
+            if (now < entry.getValue().openUntil) {
+                quarantined.add(entry.getKey());
+            }
+        }
+        return quarantined;
+    }
+
+    /**
+     * @return true if the circuit of the extension has been opened.
+     */
+    public synchronized boolean onBindFailed(ComponentName componentName) {
+        Health health = getHealth(componentName);
+        health.consecutiveBindFailures++;
+
+        if (health.halfOpen || health.consecutiveBindFailures >= MAX_CONSECUTIVE_BIND_FAILURES) {
+            return open(componentName, health, health.consecutiveBindFailures + " bind failures");
+        }
+        return false;
+    }
+
+    public synchronized void onConnected(ComponentName componentName) {
+        getHealth(componentName).consecutiveBindFailures = 0;
+    }
+
+    /**
+     * @return true if the circuit of the extension has been opened.
+     */
+    public synchronized boolean onDisconnected(ComponentName componentName) {
+        Health health = getHealth(componentName);
+
+        long now = SystemClock.elapsedRealtime();
+        health.disconnects.add(now);
+        while (health.disconnects.getFirst() < now - HOUR_MILLIS) {
+            health.disconnects.removeFirst();
+        }
+
+        if (health.halfOpen || health.disconnects.size() >= MAX_DISCONNECTS_PER_HOUR) {
+            return open(componentName, health,
+                    health.disconnects.size() + " disconnects in the last hour");
+        }
+        return false;
+    }
+
+    public synchronized void onCallSucceeded(ComponentName componentName) {
+        Health health = getHealth(componentName);
+        health.calls++;
+
+        if (health.halfOpen) {
+            Log.i(TAG, "Extension " + componentName.flattenToShortString() + " has recovered");
+            mHealth.remove(componentName);
+        }
+    }
+
+    /**
+     * @return true if the circuit of the extension has been opened.
+     */
+    public synchronized boolean onCallFailed(ComponentName componentName) {
+        Health health = getHealth(componentName);
+        health.calls++;
+        health.failedCalls++;
+
+        if (health.halfOpen || (health.calls >= MIN_CALLS_FOR_FAILURE_RATE
+                && health.failedCalls >= health.calls * MAX_FAILURE_RATE)) {
+            return open(componentName, health,
+                    health.failedCalls + " of " + health.calls + " calls failed");
+        }
+        return false;
+    }
+
+    /**
+     * Forgets the extension, e.g. because it has been updated or removed.
+     */
+    public synchronized void reset(ComponentName componentName) {
+        mHealth.remove(componentName);
+    }
+
+    /**
+     * Forgets all extensions of the package, e.g. because the package has been updated.
+     */
+    public synchronized void reset(String packageName) {
+        Iterator<ComponentName> iterator = mHealth.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getPackageName().equals(packageName)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private Health getHealth(ComponentName componentName) {
+        Health health = mHealth.get(componentName);
+        if (health == null) {
+            health = new Health();
+            mHealth.put(componentName, health);
+        }
+        return health;
+    }
+
+    private boolean open(ComponentName componentName, Health health, String reason) {
+        if (health.openUntil != 0) {
+            // Already open.
+            return false;
+        }
+
+        long cooldown = Math.min(MAX_COOLDOWN_MILLIS,
+                MIN_COOLDOWN_MILLIS << Math.min(health.trips, 16));
+
+        health.trips++;
+        health.openUntil = SystemClock.elapsedRealtime() + cooldown;
+        health.halfOpen = false;
+        health.consecutiveBindFailures = 0;
+        health.disconnects.clear();
+        health.calls = 0;
+        health.failedCalls = 0;
+
+        Log.w(TAG, String.format("Quarantining extension %s for %d seconds: %s",
+                componentName.flattenToShortString(), cooldown / 1000, reason));
+        return true;
+    }
+}
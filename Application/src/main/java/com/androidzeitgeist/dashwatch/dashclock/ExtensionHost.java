@@ -19,12 +19,10 @@ package com.androidzeitgeist.dashwatch.dashclock;
 import android.app.Service;
 import android.content.BroadcastReceiver;
 import android.content.ComponentName;
-import android.content.ContentResolver;
 import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.ServiceConnection;
-import android.database.ContentObserver;
 import android.net.Uri;
 import android.os.Handler;
 import android.os.HandlerThread;
@@ -43,13 +41,11 @@ import com.google.android.apps.dashclock.api.internal.IExtension;
 import com.google.android.apps.dashclock.api.internal.IExtensionHost;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
 
 /**
@@ -67,6 +63,22 @@ public class ExtensionHost {
      * handling of the event.
      */
     public static final int UPDATE_COLLAPSE_TIME_MILLIS = 500;
+
+    /**
+     * Screen-on events within this time after a screen-on refresh are ignored.
+     */
+    private static final long SCREEN_ON_DEBOUNCE_MILLIS = 60 * 1000;
+
+    /**
+     * The delay between the update calls of a screen-on refresh. The screen has just been turned
+     * on and the phone is busy; the extensions should not all start working at the same moment.
+     */
+    private static final int SCREEN_ON_STAGGER_MILLIS = 150;
+
+    /**
+     * The time extensions have to answer a screen-on refresh before it is synced anyway.
+     */
+    private static final long SCREEN_ON_DEADLINE_MILLIS = 5 * 1000;
     public static final SparseArray<Operation> UPDATE_OPERATIONS = new SparseArray<Operation>();
 
     static {
@@ -95,19 +107,44 @@ public class ExtensionHost {
             establishAndDestroyConnections(mExtensionManager.getActiveExtensionNames());
         }
     };
+    private ExtensionManager.OnPackageChangeListener mPackageChangeListener
+            = new ExtensionManager.OnPackageChangeListener() {
+        @Override
+        public void onPackageChanged(String packageName) {
+            // An update may have fixed a misbehaving extension: Give it a new chance and connect
+            // to extensions that have been quarantined.
+            mHealthTracker.reset(packageName);
+            establishAndDestroyConnections(mExtensionManager.getActiveExtensionNames());
+        }
+    };
     private static final int CURRENT_EXTENSION_PROTOCOL_VERSION = 2;
     private final Set<ComponentName> mExtensionsToUpdateWhenScreenOn = new HashSet<ComponentName>();
     private final BroadcastReceiver mScreenOnReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
+            long now = SystemClock.elapsedRealtime();
+            if (mLastScreenOnRefresh != 0
+                    && now - mLastScreenOnRefresh < SCREEN_ON_DEBOUNCE_MILLIS) {
+                Log.d(TAG, "Ignoring screen-on; last screen-on refresh was "
+                        + (now - mLastScreenOnRefresh) + "ms ago");
+                return;
+            }
+            mLastScreenOnRefresh = now;
+
+            List<ComponentName> extensions;
             synchronized (mExtensionsToUpdateWhenScreenOn) {
-                for (ComponentName cn : mExtensionsToUpdateWhenScreenOn) {
-                    execute(cn, UPDATE_OPERATIONS.get(DashClockExtension.UPDATE_REASON_SCREEN_ON),
-                            0, null);
-                }
+                extensions = new ArrayList<ComponentName>(mExtensionsToUpdateWhenScreenOn);
             }
+
+            refresh(extensions, DashClockExtension.UPDATE_REASON_SCREEN_ON,
+                    SCREEN_ON_STAGGER_MILLIS, SCREEN_ON_DEADLINE_MILLIS, null);
         }
     };
+
+    /**
+     * Elapsed realtime of the last screen-on refresh. Only accessed on the client thread.
+     */
+    private long mLastScreenOnRefresh;
     private Context mContext;
     private Handler mClientThreadHandler = new Handler();
     private ExtensionManager mExtensionManager;
@@ -116,17 +153,30 @@ public class ExtensionHost {
     private boolean mScreenOnReceiverRegistered = false;
     private volatile Looper mAsyncLooper;
     private volatile Handler mAsyncHandler;
+    private final ExtensionOperationDispatcher mDispatcher = new ExtensionOperationDispatcher();
+    private final ExtensionHealthTracker mHealthTracker = new ExtensionHealthTracker();
+    private final ContentObserverRegistry mContentObserverRegistry;
+
+    /**
+     * The running refresh batch or null. Only accessed on the client thread.
+     */
+    private RefreshBatch mRefreshBatch;
+    private RefreshBatchListener mRefreshBatchListener;
 
     public ExtensionHost(Service context) {
         mContext = context;
         mExtensionManager = ExtensionManager.getInstance(context);
         mExtensionManager.addOnChangeListener(mChangeListener);
+        mExtensionManager.addOnPackageChangeListener(mPackageChangeListener);
 
         HandlerThread thread = new HandlerThread("ExtensionHost");
         thread.start();
         mAsyncLooper = thread.getLooper();
         mAsyncHandler = new Handler(mAsyncLooper);
 
+        mContentObserverRegistry = new ContentObserverRegistry(context.getContentResolver(),
+                mAsyncHandler, mClientThreadHandler);
+
         mChangeListener.onExtensionsChanged(null);
         mExtensionManager.cleanupExtensions();
 
@@ -137,7 +187,7 @@ public class ExtensionHost {
         UPDATE_OPERATIONS.put(reason, new ExtensionHost.Operation() {
             @Override
             public void run(IExtension extension) throws RemoteException {
-                // Note that this is protected from ANRs since it runs in the AsyncHandler thread.
+                // Note that this is protected from ANRs since it runs on a dispatcher thread.
                 // Also, since this is a 'oneway' call, when used with remote extensions, this call
                 // does not block.
                 extension.onUpdate(reason);
@@ -151,12 +201,18 @@ public class ExtensionHost {
 
     public void destroy() {
         mExtensionManager.removeOnChangeListener(mChangeListener);
+        mExtensionManager.removeOnPackageChangeListener(mPackageChangeListener);
         if (mScreenOnReceiverRegistered) {
             mContext.unregisterReceiver(mScreenOnReceiver);
             mScreenOnReceiverRegistered = false;
         }
+        if (mRefreshBatch != null) {
+            mClientThreadHandler.removeCallbacks(mRefreshBatch.deadlineRunnable);
+            mRefreshBatch = null;
+        }
         establishAndDestroyConnections(new ArrayList<ComponentName>());
         mAsyncLooper.quit();
+        mDispatcher.shutdown();
     }
 
     private void establishAndDestroyConnections(List<ComponentName> newExtensionNames) {
@@ -173,6 +229,11 @@ public class ExtensionHost {
                 continue;
             }
 
+            if (!mHealthTracker.isAllowed(cn)) {
+                Log.d(TAG, "Not connecting to quarantined extension " + cn.flattenToShortString());
+                continue;
+            }
+
             // Bind anything not currently connected (this is the initial connection
             // to the now-added extension)
             Connection conn = createConnection(cn, false);
@@ -199,9 +260,9 @@ public class ExtensionHost {
 
         final Connection conn = new Connection();
         conn.componentName = cn;
-        conn.contentObserver = new ContentObserver(mClientThreadHandler) {
+        conn.contentClient = new ContentObserverRegistry.Client() {
             @Override
-            public void onChange(boolean selfChange) {
+            public void onContentChanged() {
                 execute(conn.componentName,
                         UPDATE_OPERATIONS.get(DashClockExtension.UPDATE_REASON_CONTENT_CHANGED),
                         UPDATE_COLLAPSE_TIME_MILLIS,
@@ -214,13 +275,14 @@ public class ExtensionHost {
             public void onServiceConnected(final ComponentName componentName, IBinder iBinder) {
                 conn.ready = true;
                 conn.binder = IExtension.Stub.asInterface(iBinder);
+                mHealthTracker.onConnected(componentName);
 
                 // Initialize the service
                 execute(conn, new Operation() {
                     @Override
                     public void run(IExtension extension) throws RemoteException {
-                        // Note that this is protected from ANRs since it runs in the
-                        // AsyncHandler thread. Also, since this is a 'oneway' call,
+                        // Note that this is protected from ANRs since it runs on a
+                        // dispatcher thread. Also, since this is a 'oneway' call,
                         // when used with remote extensions, this call does not block.
                         try {
                             extension.onInitialize(conn.hostInterface, isReconnect);
@@ -238,32 +300,25 @@ public class ExtensionHost {
                             null);
                 }
 
-                // Execute operations that were deferred until the service was available.
-                // TODO: handle service disruptions that occur here
-                synchronized (conn.deferredOps) {
-                    if (conn.ready) {
-                        Set<Object> processedCollapsedTokens = new HashSet<Object>();
-                        Iterator<Pair<Object, Operation>> it = conn.deferredOps.iterator();
-                        while (it.hasNext()) {
-                            Pair<Object, Operation> op = it.next();
-                            if (op.first != null) {
-                                if (processedCollapsedTokens.contains(op.first)) {
-                                    // An operation with this collapse token has already been
-                                    // processed; skip this one.
-                                    continue;
-                                }
-
-                                processedCollapsedTokens.add(op.first);
-                            }
-                            execute(conn, op.second, 0, null);
-                            it.remove();
-                        }
+                // Execute operations that were deferred until the service was available. Operations
+                // that failed before are delayed by their backoff, staggered operations by their
+                // delay. Collapsed operations have already been replaced when they were added to
+                // the queue.
+                if (conn.ready) {
+                    List<DeferredOperationQueue.Entry> entries = conn.deferredOps.drain();
+                    long now = SystemClock.uptimeMillis();
+                    for (DeferredOperationQueue.Entry entry : entries) {
+                        schedule(conn, entry.operation, entry.collapseToken, entry.failedAttempts,
+                                Math.max(entry.notBeforeUptimeMillis, now + entry.delayMillis));
                     }
                 }
             }
 
             @Override
             public void onServiceDisconnected(final ComponentName componentName) {
+                final ServiceConnection serviceConnection = conn.serviceConnection;
+                final boolean quarantined = mHealthTracker.onDisconnected(componentName);
+
                 conn.serviceConnection = null;
                 conn.binder = null;
                 conn.ready = false;
@@ -271,6 +326,20 @@ public class ExtensionHost {
                     @Override
                     public void run() {
                         mExtensionConnections.remove(componentName);
+
+                        if (quarantined && conn.contentClient != null) {
+                            mContentObserverRegistry.unregisterAll(conn.contentClient);
+                            conn.contentClient = null;
+                        }
+
+                        if (quarantined && serviceConnection != null) {
+                            // Unbind so that the system does not restart the crashing extension.
+                            try {
+                                mContext.unbindService(serviceConnection);
+                            } catch (IllegalArgumentException e) {
+                                Log.w(TAG, "Extension " + componentName + " was not bound", e);
+                            }
+                        }
                     }
                 });
             }
@@ -280,10 +349,12 @@ public class ExtensionHost {
             if (!mContext.bindService(new Intent().setComponent(cn), conn.serviceConnection,
                     Context.BIND_AUTO_CREATE)) {
                 Log.e(TAG, "Error binding to extension " + cn.flattenToShortString());
+                mHealthTracker.onBindFailed(cn);
                 return null;
             }
         } catch (SecurityException e) {
             Log.e(TAG, "Error binding to extension " + cn.flattenToShortString(), e);
+            mHealthTracker.onBindFailed(cn);
             return null;
         }
 
@@ -301,27 +372,37 @@ public class ExtensionHost {
                 // TODO: this needs to be thread-safe
                 Log.d(TAG, "publishUpdate received for extension " + conn.componentName);
                 mExtensionManager.updateExtensionData(conn.componentName, data);
+
+                // Posted after the change notification of the extension manager so that the
+                // change is known once the batch finishes.
+                mClientThreadHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onRefreshAnswered(conn.componentName);
+                    }
+                });
             }
 
             @Override
             public void addWatchContentUris(String[] contentUris) throws RemoteException {
-                if (contentUris != null && contentUris.length > 0 && conn.contentObserver != null) {
-                    ContentResolver resolver = mContext.getContentResolver();
+                ContentObserverRegistry.Client client = conn.contentClient;
+                if (contentUris != null && contentUris.length > 0 && client != null) {
                     for (String uri : contentUris) {
                         if (TextUtils.isEmpty(uri)) {
                             continue;
                         }
 
-                        resolver.registerContentObserver(Uri.parse(uri), true,
-                                conn.contentObserver);
+                        mContentObserverRegistry.register(Uri.parse(uri), client);
                     }
                 }
             }
 
             @Override
             public void removeAllWatchContentUris() throws RemoteException {
-                ContentResolver resolver = mContext.getContentResolver();
-                resolver.unregisterContentObserver(conn.contentObserver);
+                ContentObserverRegistry.Client client = conn.contentClient;
+                if (client != null) {
+                    mContentObserverRegistry.unregisterAll(client);
+                }
             }
 
             @Override
@@ -351,9 +432,9 @@ public class ExtensionHost {
     }
 
     private void destroyConnection(Connection conn) {
-        if (conn.contentObserver != null) {
-            mContext.getContentResolver().unregisterContentObserver(conn.contentObserver);
-            conn.contentObserver = null;
+        if (conn.contentClient != null) {
+            mContentObserverRegistry.unregisterAll(conn.contentClient);
+            conn.contentClient = null;
         }
 
         conn.binder = null;
@@ -362,7 +443,7 @@ public class ExtensionHost {
     }
 
     private void execute(final Connection conn, final Operation operation,
-                         int collapseDelayMillis, final Object collapseToken) {
+                         final int collapseDelayMillis, final Object collapseToken) {
         final Object collapseTokenForConn;
         if (collapseDelayMillis > 0 && collapseToken != null) {
             collapseTokenForConn = new Pair<ComponentName, Object>(conn.componentName,
@@ -371,54 +452,109 @@ public class ExtensionHost {
             collapseTokenForConn = null;
         }
 
-        final Runnable runnable = new Runnable() {
+        if (conn.ready) {
+            if (collapseTokenForConn != null) {
+                mAsyncHandler.removeCallbacksAndMessages(collapseTokenForConn);
+            }
+
+            schedule(conn, operation, collapseTokenForConn, 0,
+                    SystemClock.uptimeMillis() + collapseDelayMillis);
+        } else {
+            // Keep the delay (e.g. the staggering of a refresh) for when the service is connected.
+            mAsyncHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    conn.deferredOps.add(collapseTokenForConn, operation, 0, collapseDelayMillis);
+                }
+            });
+        }
+    }
+
+    /**
+     * Dispatches the operation at the given uptime. If the operation fails while the service is
+     * still connected it is retried after a backoff; if the service is gone it is deferred until the
+     * service reconnects, see {@link DeferredOperationQueue}.
+     */
+    private void schedule(final Connection conn, final Operation operation,
+                          final Object collapseTokenForConn, final int failedAttempts,
+                          long uptimeMillis) {
+        // Runs the operation on a dispatcher thread. Operations of the same extension keep their
+        // order; a slow extension does not delay the operations of other extensions.
+        final Runnable operationRunnable = new Runnable() {
             @Override
             public void run() {
                 try {
-                    if (conn.binder == null) {
+                    IExtension binder = conn.binder;
+                    if (binder == null) {
                         throw new RemoteException("Binder is unavailable.");
                     }
-                    operation.run(conn.binder);
+
+                    try {
+                        operation.run(binder);
+                    } catch (RemoteException e) {
+                        mHealthTracker.onCallFailed(conn.componentName);
+                        throw e;
+                    }
+                    mHealthTracker.onCallSucceeded(conn.componentName);
+
+                    if (failedAttempts > 0) {
+                        conn.deferredOps.onRetrySucceeded();
+                    }
                 } catch (RemoteException e) {
-                    Log.e(TAG, "Couldn't execute operation; scheduling for retry upon service "
-                            + "reconnection.", e);
-                    // TODO: exponential backoff for retrying the same operation, or fail after
-                    // n attempts (in case the remote service consistently crashes when
-                    // executing this operation)
-                    synchronized (conn.deferredOps) {
-                        conn.deferredOps.add(new Pair<Object, Operation>(
-                                collapseTokenForConn, operation));
+                    if (conn.ready && conn.binder != null) {
+                        // The binder is still alive and the service may never reconnect: Retry
+                        // on our own instead of waiting for a reconnection.
+                        long retryUptimeMillis = conn.deferredOps.getRetryUptimeMillis(
+                                failedAttempts + 1);
+                        if (retryUptimeMillis >= 0) {
+                            Log.e(TAG, "Couldn't execute operation; retrying after backoff.", e);
+                            schedule(conn, operation, collapseTokenForConn, failedAttempts + 1,
+                                    retryUptimeMillis);
+                        } else {
+                            Log.e(TAG, "Couldn't execute operation of " + conn.componentName
+                                    + "; dropping it (" + conn.deferredOps.getStats() + ")", e);
+                        }
+                    } else if (conn.deferredOps.add(collapseTokenForConn, operation,
+                            failedAttempts + 1)) {
+                        Log.e(TAG, "Couldn't execute operation; scheduling for retry upon service "
+                                + "reconnection.", e);
+                    } else {
+                        Log.e(TAG, "Couldn't execute operation of " + conn.componentName
+                                + "; dropping it (" + conn.deferredOps.getStats() + ")", e);
                     }
                 }
             }
         };
 
-        if (conn.ready) {
-            if (collapseTokenForConn != null) {
-                mAsyncHandler.removeCallbacksAndMessages(collapseTokenForConn);
+        // The async handler only takes care of delaying and collapsing operations.
+        final Runnable runnable = new Runnable() {
+            @Override
+            public void run() {
+                if (!mDispatcher.dispatch(conn.componentName, operationRunnable)) {
+                    Log.w(TAG, String.format("Extension %s is not keeping up; dropped an older "
+                            + "operation (queue depth %d, dropped %d in total)",
+                            conn.componentName.flattenToShortString(),
+                            mDispatcher.getQueueDepth(conn.componentName),
+                            mDispatcher.getDroppedOperations()));
+                }
             }
+        };
 
-            if (collapseDelayMillis > 0) {
-                mAsyncHandler.postAtTime(runnable, collapseTokenForConn,
-                        SystemClock.uptimeMillis() + collapseDelayMillis);
-            } else {
-                mAsyncHandler.post(runnable);
-            }
+        if (uptimeMillis > SystemClock.uptimeMillis()) {
+            mAsyncHandler.postAtTime(runnable, collapseTokenForConn, uptimeMillis);
         } else {
-            mAsyncHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    synchronized (conn.deferredOps) {
-                        conn.deferredOps.add(new Pair<Object, Operation>(
-                                collapseTokenForConn, operation));
-                    }
-                }
-            });
+            mAsyncHandler.post(runnable);
         }
     }
 
     public void execute(ComponentName cn, Operation operation,
                         int collapseDelayMillis, final Object collapseToken) {
+        if (!mHealthTracker.isAllowed(cn)) {
+            Log.d(TAG, "Extension " + cn.flattenToShortString() + " is quarantined; operation "
+                    + "canceled.");
+            return;
+        }
+
         Connection conn = mExtensionConnections.get(cn);
         if (conn == null) {
             conn = createConnection(cn, true);
@@ -434,6 +570,132 @@ public class ExtensionHost {
         execute(conn, operation, collapseDelayMillis, collapseToken);
     }
 
+    /**
+     * Asks the given extensions to update in one batch. The listener (may be null) and the
+     * listener set with {@link #setRefreshBatchListener(RefreshBatchListener)} are called once all
+     * of them published an update or the deadline has passed, whatever happens first. Quarantined
+     * extensions are skipped.
+     *
+     * The update calls are staggered by the given delay. If a batch is already running the
+     * extensions and the listener are added to it and its deadline is kept. Must be called on the
+     * client thread.
+     */
+    public void refresh(Collection<ComponentName> extensions, int reason, int staggerMillis,
+                        long deadlineMillis, RefreshBatchListener listener) {
+        boolean newBatch = mRefreshBatch == null;
+        if (newBatch) {
+            mRefreshBatch = new RefreshBatch();
+        }
+
+        final RefreshBatch batch = mRefreshBatch;
+        if (listener != null) {
+            batch.listeners.add(listener);
+        }
+
+        int delay = 0;
+        for (ComponentName cn : extensions) {
+            if (mHealthTracker.isQuarantined(cn) || !batch.pending.add(cn)) {
+                continue;
+            }
+
+            execute(cn, UPDATE_OPERATIONS.get(reason), delay, null);
+            delay += staggerMillis;
+        }
+
+        Log.d(TAG, String.format("Refresh batch: %d extensions pending", batch.pending.size()));
+
+        if (batch.pending.isEmpty()) {
+            finishRefreshBatch();
+        } else if (newBatch) {
+            mClientThreadHandler.postDelayed(batch.deadlineRunnable, deadlineMillis);
+        }
+    }
+
+    /**
+     * Returns true if a refresh batch is running.
+     */
+    public boolean isRefreshing() {
+        return mRefreshBatch != null;
+    }
+
+    private void onRefreshAnswered(ComponentName cn) {
+        if (mRefreshBatch != null && mRefreshBatch.pending.remove(cn)
+                && mRefreshBatch.pending.isEmpty()) {
+            finishRefreshBatch();
+        }
+    }
+
+    private void finishRefreshBatch() {
+        RefreshBatch batch = mRefreshBatch;
+        mRefreshBatch = null;
+
+        mClientThreadHandler.removeCallbacks(batch.deadlineRunnable);
+
+        if (!batch.pending.isEmpty()) {
+            Log.d(TAG, "Refresh batch deadline passed; no answer from " + batch.pending);
+        }
+
+        if (mRefreshBatchListener != null) {
+            mRefreshBatchListener.onRefreshFinished(batch.pending);
+        }
+
+        for (RefreshBatchListener listener : batch.listeners) {
+            listener.onRefreshFinished(batch.pending);
+        }
+    }
+
+    /**
+     * Sets a listener that is called whenever a refresh batch has finished, including the batches
+     * started by the host itself (e.g. when the screen is turned on).
+     */
+    public void setRefreshBatchListener(RefreshBatchListener listener) {
+        mRefreshBatchListener = listener;
+    }
+
+    /**
+     * Returns the dispatcher running the operations of extensions, e.g. to read its queue metrics.
+     */
+    public ExtensionOperationDispatcher getDispatcher() {
+        return mDispatcher;
+    }
+
+    /**
+     * Returns true if the extension misbehaved and is currently neither bound nor called.
+     */
+    public boolean isQuarantined(ComponentName cn) {
+        return mHealthTracker.isQuarantined(cn);
+    }
+
+    /**
+     * Returns the extensions that are currently quarantined, see {@link ExtensionHealthTracker}.
+     */
+    public Set<ComponentName> getQuarantinedExtensions() {
+        return mHealthTracker.getQuarantinedExtensions();
+    }
+
+    /**
+     * Will be called on the client thread once a refresh batch has finished.
+     */
+    public static interface RefreshBatchListener {
+        /**
+         * @param unanswered The extensions that did not publish an update before the deadline.
+         */
+        void onRefreshFinished(Set<ComponentName> unanswered);
+    }
+
+    private class RefreshBatch {
+        final Set<ComponentName> pending = new HashSet<ComponentName>();
+        final List<RefreshBatchListener> listeners = new ArrayList<RefreshBatchListener>();
+        final Runnable deadlineRunnable = new Runnable() {
+            @Override
+            public void run() {
+                if (mRefreshBatch == RefreshBatch.this) {
+                    finishRefreshBatch();
+                }
+            }
+        };
+    }
+
     /**
      * Will be run on a worker thread.
      */
@@ -443,16 +705,15 @@ public class ExtensionHost {
 
     private static class Connection {
         /**
-         * Only access on the async thread. The pair is (collapse token, operation)
+         * Accessed from the async and dispatcher threads; the queue is thread-safe.
          */
-        final Queue<Pair<Object, Operation>> deferredOps
-                = new LinkedList<Pair<Object, Operation>>();
+        final DeferredOperationQueue deferredOps = new DeferredOperationQueue();
         boolean ready = false;
         ComponentName componentName;
         ServiceConnection serviceConnection;
         IExtension binder;
         IExtensionHost hostInterface;
-        ContentObserver contentObserver;
+        ContentObserverRegistry.Client contentClient;
     }
 }
 
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2014 Sebastian Kaspari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.androidzeitgeist.dashwatch.dashclock;
+
+import android.content.ComponentName;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.net.Uri;
+import android.util.Log;
+import android.util.LruCache;
+
+import com.androidzeitgeist.dashwatch.common.AssetHelper;
+import com.androidzeitgeist.dashwatch.common.Hash;
+import com.androidzeitgeist.dashwatch.common.Utils;
+
+/**
+ * Cache for flattened extension icons and their encoded image data. Loading an icon from the
+ * extension's package and encoding it is expensive while the icons hardly ever change.
+ *
+ * Icons of a package are removed from the cache whenever the package is updated or removed.
+ */
+public class ExtensionIconCache {
+    private static final String TAG = "DashWatch/ExtensionIconCache";
+
+    private static final int MAX_CACHE_SIZE_BYTES = 4 * 1024 * 1024;
+
+    private static ExtensionIconCache sInstance;
+
+    private final LruCache<String, Icon> mCache = new LruCache<String, Icon>(MAX_CACHE_SIZE_BYTES) {
+        @Override
+        protected int sizeOf(String key, Icon icon) {
+            return icon.bitmap.getByteCount() + icon.data.length;
+        }
+    };
+
+    private final ExtensionManager.OnPackageChangeListener mPackageChangeListener
+            = new ExtensionManager.OnPackageChangeListener() {
+        @Override
+        public void onPackageChanged(String packageName) {
+            invalidatePackage(packageName);
+        }
+    };
+
+    private Context mApplicationContext;
+
+    public static synchronized ExtensionIconCache getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ExtensionIconCache(context);
+        }
+
+        return sInstance;
+    }
+
+    private ExtensionIconCache(Context context) {
+        mApplicationContext = context.getApplicationContext();
+
+        ExtensionManager.getInstance(mApplicationContext)
+                .addOnPackageChangeListener(mPackageChangeListener);
+    }
+
+    /**
+     * Returns the flattened icon of the extension or null if the icon could not be loaded.
+     */
+    public Icon getIcon(ComponentName extension, int icon, Uri iconUri, int color) {
+        String key = createKey(extension, icon, iconUri, color);
+
+        Icon cachedIcon = mCache.get(key);
+        if (cachedIcon != null) {
+            return cachedIcon;
+        }
+
+        Bitmap bitmap = Utils.loadExtensionIcon(mApplicationContext, extension, icon, iconUri, color);
+        if (bitmap == null) {
+            return null;
+        }
+
+        AssetHelper.EncodedImage image = AssetHelper.encodeBitmap(bitmap, AssetHelper.Policy.ICON);
+
+        cachedIcon = new Icon(bitmap, image.data, Hash.sha1(bitmap));
+        mCache.put(key, cachedIcon);
+
+        return cachedIcon;
+    }
+
+    private void invalidatePackage(String packageName) {
+        Log.d(TAG, "Removing cached icons of package " + packageName);
+
+        String prefix = packageName + "/";
+
+        for (String key : mCache.snapshot().keySet()) {
+            if (key.startsWith(prefix)) {
+                mCache.remove(key);
+            }
+        }
+    }
+
+    private static String createKey(ComponentName extension, int icon, Uri iconUri, int color) {
+        return String.format(
+                "%s|%s|%08x",
+                extension.flattenToString(),
+                iconUri != null ? iconUri.toString() : String.valueOf(icon),
+                color
+        );
+    }
+
+    public static class Icon {
+        public final Bitmap bitmap;
+        public final byte[] data;
+        public final String digest;
+
+        private Icon(Bitmap bitmap, byte[] data, String digest) {
+            this.bitmap = bitmap;
+            this.data = data;
+            this.digest = digest;
+        }
+    }
+}
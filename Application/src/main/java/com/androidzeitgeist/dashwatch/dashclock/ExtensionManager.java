@@ -18,13 +18,16 @@ package com.androidzeitgeist.dashwatch.dashclock;
  */
 
 import android.app.backup.BackupManager;
+import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
 import android.content.pm.ResolveInfo;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
 import android.os.Bundle;
 import android.os.Handler;
 import android.os.Looper;
@@ -35,13 +38,11 @@ import android.util.Log;
 import com.google.android.apps.dashclock.api.DashClockExtension;
 import com.google.android.apps.dashclock.api.ExtensionData;
 
-import org.json.JSONException;
-import org.json.JSONObject;
-import org.json.JSONTokener;
-
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -63,14 +64,55 @@ public class ExtensionManager {
     private Map<ComponentName, ExtensionWithData> mExtensionInfoMap
             = new HashMap<ComponentName, ExtensionWithData>();
     private List<OnChangeListener> mOnChangeListeners = new ArrayList<OnChangeListener>();
+    private List<OnPackageChangeListener> mOnPackageChangeListeners
+            = new ArrayList<OnPackageChangeListener>();
     private SharedPreferences mDefaultPreferences;
-    private SharedPreferences mValuesPreferences;
+    private ExtensionDataStore mStore;
+    private ExtensionDataPersister mPersister;
     private Handler mMainThreadHandler = new Handler(Looper.getMainLooper());
 
+    /**
+     * All available extensions. Queried from the package manager once and then updated for single
+     * packages whenever a package is added, changed or removed.
+     */
+    private final Map<ComponentName, ExtensionListing> mCatalog
+            = new LinkedHashMap<ComponentName, ExtensionListing>();
+    private boolean mCatalogLoaded;
+
+    private final BroadcastReceiver mPackageChangeReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            Uri data = intent.getData();
+            if (data == null) {
+                return;
+            }
+
+            if (Intent.ACTION_PACKAGE_REMOVED.equals(intent.getAction())
+                    && intent.getBooleanExtra(Intent.EXTRA_REPLACING, false)) {
+                // The package is being updated: We'll receive ACTION_PACKAGE_REPLACED soon.
+                return;
+            }
+
+            String packageName = data.getSchemeSpecificPart();
+            updateCatalog(packageName);
+            notifyOnPackageChangeListeners(packageName);
+        }
+    };
+
     private ExtensionManager(Context context) {
         mApplicationContext = context.getApplicationContext();
         mDefaultPreferences = PreferenceManager.getDefaultSharedPreferences(mApplicationContext);
-        mValuesPreferences = mApplicationContext.getSharedPreferences("extension_data", 0);
+        mStore = new ExtensionDataStore(mApplicationContext);
+        mPersister = new ExtensionDataPersister(mStore);
+
+        IntentFilter filter = new IntentFilter();
+        filter.addAction(Intent.ACTION_PACKAGE_ADDED);
+        filter.addAction(Intent.ACTION_PACKAGE_REPLACED);
+        filter.addAction(Intent.ACTION_PACKAGE_CHANGED);
+        filter.addAction(Intent.ACTION_PACKAGE_REMOVED);
+        filter.addDataScheme("package");
+        mApplicationContext.registerReceiver(mPackageChangeReceiver, filter);
+
         loadActiveExtensionList();
     }
 
@@ -90,7 +132,7 @@ public class ExtensionManager {
         for (ExtensionListing listing : getAvailableExtensions()) {
             // Ensure the extension protocol version is supported. If it isn't, don't allow its use.
             if (!ExtensionHost.supportsProtocolVersion(listing.protocolVersion)) {
-                Log.w(TAG, "Extension '" + listing.title + "' using unsupported protocol version "
+                Log.w(TAG, "Extension '" + listing.getTitle() + "' using unsupported protocol version "
                         + listing.protocolVersion + ".");
                 continue;
             }
@@ -164,7 +206,7 @@ public class ExtensionManager {
 
         mDefaultPreferences.edit()
                 .putString(PREF_ACTIVE_EXTENSIONS, sb.toString())
-                .commit();
+                .apply();
         new BackupManager(mApplicationContext).dataChanged();
     }
 
@@ -247,34 +289,28 @@ public class ExtensionManager {
     }
 
     private ExtensionData deserializeExtensionData(ComponentName componentName) {
-        ExtensionData extensionData = new ExtensionData();
-        String val = mValuesPreferences.getString(componentName.flattenToString(), "");
-        if (!TextUtils.isEmpty(val)) {
-            try {
-                extensionData.deserialize((JSONObject) new JSONTokener(val).nextValue());
-            } catch (JSONException e) {
-                Log.e(TAG, "Error loading extension data cache for " + componentName + ".",
-                        e);
-            }
+        ExtensionDataPersister.Pending pending = mPersister.getPending(componentName);
+        if (pending != null) {
+            return pending.data != null ? pending.data : new ExtensionData();
         }
-        return extensionData;
+
+        ExtensionData extensionData = mStore.get(componentName);
+        return extensionData != null ? extensionData : new ExtensionData();
     }
 
     private void serializeExtensionData(ComponentName componentName, ExtensionData extensionData) {
-        try {
-            mValuesPreferences.edit()
-                    .putString(componentName.flattenToString(),
-                            extensionData.serialize().toString())
-                    .commit();
-        } catch (JSONException e) {
-            Log.e(TAG, "Error storing extension data cache for " + componentName + ".", e);
-        }
+        mPersister.put(componentName, extensionData);
     }
 
     private void destroyExtensionData(ComponentName componentName) {
-        mValuesPreferences.edit()
-                .remove(componentName.flattenToString())
-                .commit();
+        mPersister.remove(componentName);
+    }
+
+    /**
+     * Writes all extension data that has not been written yet. Blocks until the data is written.
+     */
+    public void flush() {
+        mPersister.flush();
     }
 
     public List<ExtensionWithData> getActiveExtensionsWithData() {
@@ -309,15 +345,81 @@ public class ExtensionManager {
      * Returns a listing of all available (installed) extensions.
      */
     public List<ExtensionListing> getAvailableExtensions() {
+        synchronized (mCatalog) {
+            if (!mCatalogLoaded) {
+                for (ExtensionListing listing : queryExtensions(null)) {
+                    mCatalog.put(listing.componentName, listing);
+                }
+                mCatalogLoaded = true;
+
+                Log.d(TAG, String.format("Loaded catalog with %d extensions", mCatalog.size()));
+            }
+
+            return new ArrayList<ExtensionListing>(mCatalog.values());
+        }
+    }
+
+    /**
+     * Replaces the listings of the given package in the catalog with the extensions the package
+     * currently provides.
+     */
+    private void updateCatalog(String packageName) {
+        synchronized (mCatalog) {
+            if (!mCatalogLoaded) {
+                // The catalog will be loaded completely on first use.
+                return;
+            }
+        }
+
+        List<ExtensionListing> listings = queryExtensions(packageName);
+
+        synchronized (mCatalog) {
+            Iterator<ComponentName> iterator = mCatalog.keySet().iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().getPackageName().equals(packageName)) {
+                    iterator.remove();
+                }
+            }
+
+            for (ExtensionListing listing : listings) {
+                mCatalog.put(listing.componentName, listing);
+            }
+        }
+
+        // Active extensions should see the new listing (e.g. a new title or icon).
+        for (ExtensionListing listing : listings) {
+            ExtensionWithData ewd = mExtensionInfoMap.get(listing.componentName);
+            if (ewd != null) {
+                ewd.listing = listing;
+            }
+        }
+
+        Log.d(TAG, String.format("Updated catalog for package %s: %d extensions",
+                packageName, listings.size()));
+    }
+
+    /**
+     * Queries the package manager for extensions.
+     *
+     * @param packageName only query extensions of this package or null for all extensions.
+     */
+    private List<ExtensionListing> queryExtensions(String packageName) {
         List<ExtensionListing> availableExtensions = new ArrayList<ExtensionListing>();
         PackageManager pm = mApplicationContext.getPackageManager();
+
+        Intent queryIntent = new Intent(DashClockExtension.ACTION_EXTENSION);
+        if (packageName != null) {
+            queryIntent.setPackage(packageName);
+        }
+
         List<ResolveInfo> resolveInfos = pm.queryIntentServices(
-                new Intent(DashClockExtension.ACTION_EXTENSION), PackageManager.GET_META_DATA);
+                queryIntent, PackageManager.GET_META_DATA);
         for (ResolveInfo resolveInfo : resolveInfos) {
             ExtensionListing listing = new ExtensionListing();
             listing.componentName = new ComponentName(resolveInfo.serviceInfo.packageName,
                     resolveInfo.serviceInfo.name);
-            listing.title = resolveInfo.loadLabel(pm).toString();
+            listing.packageManager = pm;
+            listing.resolveInfo = resolveInfo;
             Bundle metaData = resolveInfo.serviceInfo.metaData;
             if (metaData != null) {
                 listing.protocolVersion = metaData.getInt("protocolVersion");
@@ -330,7 +432,6 @@ public class ExtensionManager {
                 }
             }
 
-            listing.icon = resolveInfo.loadIcon(pm);
             availableExtensions.add(listing);
         }
 
@@ -369,6 +470,31 @@ public class ExtensionManager {
         mOnChangeListeners.remove(onChangeListener);
     }
 
+    /**
+     * Registers a listener to be triggered when a package has been added, updated or removed.
+     */
+    public void addOnPackageChangeListener(OnPackageChangeListener onPackageChangeListener) {
+        mOnPackageChangeListeners.add(onPackageChangeListener);
+    }
+
+    /**
+     * Removes a listener previously registered with {@link #addOnPackageChangeListener}.
+     */
+    public void removeOnPackageChangeListener(OnPackageChangeListener onPackageChangeListener) {
+        mOnPackageChangeListeners.remove(onPackageChangeListener);
+    }
+
+    private void notifyOnPackageChangeListeners(final String packageName) {
+        mMainThreadHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (OnPackageChangeListener listener : mOnPackageChangeListeners) {
+                    listener.onPackageChanged(packageName);
+                }
+            }
+        });
+    }
+
     private void notifyOnChangeListeners(final ComponentName sourceExtension) {
         mMainThreadHandler.post(new Runnable() {
             @Override
@@ -388,6 +514,10 @@ public class ExtensionManager {
         void onExtensionsChanged(ComponentName sourceExtension);
     }
 
+    public static interface OnPackageChangeListener {
+        void onPackageChanged(String packageName);
+    }
+
     public static class ExtensionWithData {
         public ExtensionListing listing;
         public ExtensionData latestData;
@@ -397,9 +527,34 @@ public class ExtensionManager {
         public ComponentName componentName;
         public int protocolVersion;
         public boolean worldReadable;
-        public String title;
         public String description;
-        public Drawable icon;
         public ComponentName settingsActivity;
+
+        private PackageManager packageManager;
+        private ResolveInfo resolveInfo;
+        private String title;
+        private Drawable icon;
+
+        /**
+         * Returns the title of the extension. The title is loaded on first access.
+         */
+        public synchronized String getTitle() {
+            if (title == null && resolveInfo != null) {
+                title = resolveInfo.loadLabel(packageManager).toString();
+            }
+
+            return title;
+        }
+
+        /**
+         * Returns the icon of the extension. The icon is loaded on first access.
+         */
+        public synchronized Drawable getIcon() {
+            if (icon == null && resolveInfo != null) {
+                icon = resolveInfo.loadIcon(packageManager);
+            }
+
+            return icon;
+        }
     }
 }
@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2014 Sebastian Kaspari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.androidzeitgeist.dashwatch.dashclock;
+
+import android.content.ComponentName;
+import android.util.Log;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs extension operations on a small pool of worker threads. Operations of the same extension
+ * are run one after another in the order they have been dispatched; operations of different
+ * extensions run in parallel. This way a slow extension only delays its own operations.
+ *
+ * Each extension has a bounded queue. If the queue is full the oldest waiting operation is dropped:
+ * The newest operation (usually the most relevant update) is always run.
+ */
+public class ExtensionOperationDispatcher {
+    private static final String TAG = "DashWatch/ExtensionOperationDispatcher";
+
+    private static final int THREAD_COUNT = 3;
+    private static final int MAX_QUEUE_DEPTH = 16;
+
+    private final ExecutorService mExecutorService = Executors.newFixedThreadPool(THREAD_COUNT);
+    private final Map<ComponentName, ExtensionQueue> mQueues
+            = new HashMap<ComponentName, ExtensionQueue>();
+
+    private int mMaxQueueDepth;
+    private int mDroppedOperations;
+
+    private class ExtensionQueue implements Runnable {
+        final ComponentName componentName;
+        final LinkedList<Runnable> operations = new LinkedList<Runnable>();
+        boolean scheduled;
+
+        ExtensionQueue(ComponentName componentName) {
+            this.componentName = componentName;
+        }
+
+        /**
+         * Runs the next operation of this extension and schedules itself again if there are more.
+         * Only one operation of an extension runs at a time because the queue is only scheduled
+         * once.
+         */
+        @Override
+        public void run() {
+            Runnable operation;
+
+            synchronized (ExtensionOperationDispatcher.this) {
+                operation = operations.poll();
+            }
+
+            if (operation != null) {
+                try {
+                    operation.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Operation of extension " + componentName + " failed", e);
+                }
+            }
+
+            synchronized (ExtensionOperationDispatcher.this) {
+                if (operations.isEmpty()) {
+                    scheduled = false;
+                    mQueues.remove(componentName);
+                } else {
+                    submit(this);
+                }
+            }
+        }
+    }
+
+    /**
+     * Queues the operation of the given extension.
+     *
+     * @return false if the queue of the extension was full and its oldest waiting operation has
+     *         been dropped to make room for this one. Dropped operations are counted but not
+     *         logged; that is up to the caller.
+     */
+    public synchronized boolean dispatch(ComponentName componentName, Runnable operation) {
+        ExtensionQueue queue = mQueues.get(componentName);
+        if (queue == null) {
+            queue = new ExtensionQueue(componentName);
+            mQueues.put(componentName, queue);
+        }
+
+        boolean dropped = false;
+        if (queue.operations.size() >= MAX_QUEUE_DEPTH) {
+            queue.operations.removeFirst();
+            mDroppedOperations++;
+            dropped = true;
+        }
+
+        queue.operations.add(operation);
+
+        if (queue.operations.size() > mMaxQueueDepth) {
+            mMaxQueueDepth = queue.operations.size();
+            Log.d(TAG, String.format("New max queue depth %d (%s)",
+                    mMaxQueueDepth, componentName.flattenToShortString()));
+        }
+
+        if (!queue.scheduled) {
+            queue.scheduled = true;
+            submit(queue);
+        }
+
+        return !dropped;
+    }
+
+    /**
+     * Returns the number of operations waiting to be run for the given extension.
+     */
+    public synchronized int getQueueDepth(ComponentName componentName) {
+        ExtensionQueue queue = mQueues.get(componentName);
+        return queue != null ? queue.operations.size() : 0;
+    }
+
+    /**
+     * Returns the number of operations waiting to be run for all extensions.
+     */
+    public synchronized int getTotalQueueDepth() {
+        int depth = 0;
+        for (ExtensionQueue queue : mQueues.values()) {
+            depth += queue.operations.size();
+        }
+        return depth;
+    }
+
+    /**
+     * Returns the largest number of operations that have been waiting for one extension.
+     */
+    public synchronized int getMaxQueueDepth() {
+        return mMaxQueueDepth;
+    }
+
+    public synchronized int getDroppedOperations() {
+        return mDroppedOperations;
+    }
+
+    /**
+     * Drops all waiting operations. Operations that are currently running are not interrupted.
+     */
+    public synchronized void shutdown() {
+        // Queues that have already been submitted to the executor find no operation to run.
+        for (ExtensionQueue queue : mQueues.values()) {
+            queue.operations.clear();
+        }
+        mQueues.clear();
+        mExecutorService.shutdown();
+    }
+
+    private void submit(ExtensionQueue queue) {
+        try {
+            mExecutorService.execute(queue);
+        } catch (RejectedExecutionException e) {
+            // The dispatcher has been shut down.
+            queue.operations.clear();
+            queue.scheduled = false;
+        }
+    }
+}
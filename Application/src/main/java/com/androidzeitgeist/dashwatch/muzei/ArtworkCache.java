@@ -19,6 +19,7 @@ package com.androidzeitgeist.dashwatch.muzei;
 import android.content.ComponentName;
 import android.content.Context;
 import android.net.Uri;
+import android.os.CancellationSignal;
 import android.util.Log;
 import android.util.Pair;
 
@@ -64,7 +65,12 @@ public class ArtworkCache {
         mArtCacheRoot = new File(mAppCacheRoot, "artcache");
     }
 
-    public synchronized void maybeDownloadCurrentArtworkSync() {
+    /**
+     * Downloads the current artwork of the selected source if it is not cached yet. The download
+     * is aborted as soon as the signal is canceled, e.g. because a newer artwork has been
+     * published.
+     */
+    public synchronized void maybeDownloadCurrentArtworkSync(CancellationSignal signal) {
         SourceManager sm = SourceManager.getInstance(mApplicationContext);
         ComponentName selectedSource = sm.getSelectedSource();
         SourceState selectedSourceState = sm.getSelectedSourceState();
@@ -90,6 +96,10 @@ public class ArtworkCache {
 
         // EventBus.getDefault().postSticky(new ArtworkLoadingStateChangedEvent(true, false));
 
+        if (signal.isCanceled()) {
+            return;
+        }
+
         InputStream in;
         try {
             in = IOUtil.openUri(mApplicationContext, currentArtwork.getImageUri(), "image/");
@@ -105,9 +115,13 @@ public class ArtworkCache {
         // TODO: cancelArtworkDownloadRetries();
 
         // Input stream successfully opened. Save to cache file
+        File tempFile = new File(mArtCacheRoot, "temp.download");
         try {
-            File tempFile = new File(mArtCacheRoot, "temp.download");
-            IOUtil.readFullyWriteToFile(in, tempFile);
+            if (!IOUtil.readFullyWriteToFile(in, tempFile, signal)) {
+                Log.d(TAG, "Download of artwork canceled: " + currentArtwork.getImageUri());
+                tempFile.delete();
+                return;
+            }
             destFile.delete();
             if (!tempFile.renameTo(destFile)) {
                 throw new IOException("Couldn't move temp artwork file to final cache location.");
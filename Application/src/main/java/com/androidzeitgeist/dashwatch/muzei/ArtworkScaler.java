@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2014 Sebastian Kaspari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.androidzeitgeist.dashwatch.muzei;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.graphics.BitmapRegionDecoder;
+import android.graphics.Rect;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Prepares artwork for the wearable: Decodes only as many pixels as needed and center-crops the
+ * image to the size of the wearable's display. Muzei artwork is usually a lot larger than the
+ * display of a watch.
+ */
+public class ArtworkScaler {
+    private static final String TAG = "DashWatch/ArtworkScaler";
+
+    /**
+     * Images whose aspect ratio differs less than this from the display's are sent without crop.
+     */
+    private static final float ASPECT_RATIO_TOLERANCE = 0.02f;
+
+    /**
+     * Returns true if the image file can be sent to the wearable as it is: It is already encoded
+     * in a lossy format, not larger than the given size, has the aspect ratio of the given size
+     * (so it does not need to be cropped) and fits into the byte budget.
+     */
+    public static boolean isWatchFriendly(File file, int width, int height, int maxBytes) {
+        if (file.length() > maxBytes) {
+            return false;
+        }
+
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+
+        return ("image/jpeg".equals(options.outMimeType) || "image/webp".equals(options.outMimeType))
+                && options.outWidth > 0 && options.outWidth <= width
+                && options.outHeight > 0 && options.outHeight <= height
+                && hasAspectRatio(options.outWidth, options.outHeight, width, height);
+    }
+
+    private static boolean hasAspectRatio(int width, int height, int targetWidth, int targetHeight) {
+        float ratio = (float) width / height;
+        float targetRatio = (float) targetWidth / targetHeight;
+
+        return Math.abs(ratio - targetRatio) <= targetRatio * ASPECT_RATIO_TOLERANCE;
+    }
+
+    /**
+     * Decodes the image file and returns a bitmap of exactly the given size or null if the file
+     * could not be decoded.
+     */
+    public static Bitmap decodeArtwork(File file, int width, int height) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getPath(), options);
+
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            Log.w(TAG, "Could not decode bounds of artwork: " + file.getPath());
+            return null;
+        }
+
+        Rect crop = getCenterCrop(options.outWidth, options.outHeight, width, height);
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = getSampleSize(crop.width(), crop.height(), width, height);
+
+        Bitmap bitmap = decodeRegion(file, crop, options);
+
+        if (bitmap == null) {
+            // Fall back to decoding the whole (sampled) image and cropping afterwards.
+            Bitmap sampledBitmap = BitmapFactory.decodeFile(file.getPath(), options);
+            if (sampledBitmap == null) {
+                return null;
+            }
+
+            int sampleSize = options.inSampleSize;
+            bitmap = Bitmap.createBitmap(
+                    sampledBitmap,
+                    crop.left / sampleSize,
+                    crop.top / sampleSize,
+                    Math.min(crop.width() / sampleSize, sampledBitmap.getWidth() - crop.left / sampleSize),
+                    Math.min(crop.height() / sampleSize, sampledBitmap.getHeight() - crop.top / sampleSize)
+            );
+        }
+
+        Log.d(TAG, String.format("Decoded artwork %dx%d (sample size %d) to %dx%d",
+                options.outWidth, options.outHeight, options.inSampleSize, width, height));
+
+        if (bitmap.getWidth() == width && bitmap.getHeight() == height) {
+            return bitmap;
+        }
+
+        return Bitmap.createScaledBitmap(bitmap, width, height, true);
+    }
+
+    private static Bitmap decodeRegion(File file, Rect region, BitmapFactory.Options options) {
+        BitmapRegionDecoder decoder = null;
+
+        try {
+            decoder = BitmapRegionDecoder.newInstance(file.getPath(), false);
+            return decoder.decodeRegion(region, options);
+        } catch (IOException e) {
+            Log.d(TAG, "Region decoding not supported for artwork: " + file.getPath(), e);
+            return null;
+        } finally {
+            if (decoder != null) {
+                decoder.recycle();
+            }
+        }
+    }
+
+    /**
+     * Returns the largest centered rectangle of the source image with the target aspect ratio.
+     */
+    private static Rect getCenterCrop(int sourceWidth, int sourceHeight, int targetWidth, int targetHeight) {
+        int cropWidth = sourceWidth;
+        int cropHeight = sourceHeight;
+
+        if ((long) sourceWidth * targetHeight > (long) sourceHeight * targetWidth) {
+            cropWidth = (int) ((long) sourceHeight * targetWidth / targetHeight);
+        } else {
+            cropHeight = (int) ((long) sourceWidth * targetHeight / targetWidth);
+        }
+
+        int left = (sourceWidth - cropWidth) / 2;
+        int top = (sourceHeight - cropHeight) / 2;
+
+        return new Rect(left, top, left + cropWidth, top + cropHeight);
+    }
+
+    /**
+     * Returns the largest power of two sample size that still yields at least the target size.
+     */
+    private static int getSampleSize(int sourceWidth, int sourceHeight, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+
+        while (sourceWidth / (sampleSize * 2) >= targetWidth
+                && sourceHeight / (sampleSize * 2) >= targetHeight) {
+            sampleSize *= 2;
+        }
+
+        return sampleSize;
+    }
+}
@@ -18,27 +18,15 @@
 package com.androidzeitgeist.dashwatch.muzei;
 
 import android.app.IntentService;
-import android.content.ComponentName;
 import android.content.Intent;
-import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.os.Bundle;
+import android.os.CancellationSignal;
 import android.util.Log;
 
-import com.androidzeitgeist.dashwatch.common.AssetHelper;
-import com.androidzeitgeist.dashwatch.common.Constants;
-import com.google.android.apps.muzei.api.Artwork;
+import com.androidzeitgeist.dashwatch.WearableManager;
 import com.google.android.apps.muzei.api.internal.SourceState;
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.api.GoogleApiClient;
-import com.google.android.gms.common.api.ResultCallback;
-import com.google.android.gms.wearable.DataApi;
-import com.google.android.gms.wearable.PutDataMapRequest;
-import com.google.android.gms.wearable.PutDataRequest;
-import com.google.android.gms.wearable.Wearable;
 
-import java.io.File;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.google.android.apps.muzei.api.internal.ProtocolConstants.ACTION_PUBLISH_STATE;
 import static com.google.android.apps.muzei.api.internal.ProtocolConstants.EXTRA_STATE;
@@ -46,7 +34,19 @@ import static com.google.android.apps.muzei.api.internal.ProtocolConstants.EXTRA
 
 public class SourceSubscriberService extends IntentService {
     private static final String TAG = "DashWatch/SourceSubscriberService";
-    private static final long CLIENT_CONNECTION_TIMEOUT = 10000;
+
+    private static final String EXTRA_SEQUENCE = "com.androidzeitgeist.dashwatch.extra.SEQUENCE";
+
+    /**
+     * Sequence number of the latest published state. Only the artwork of the latest state is
+     * downloaded and sent; older states are superseded.
+     */
+    private final AtomicInteger mLatestSequence = new AtomicInteger();
+
+    /**
+     * Signal of the running artwork download or null.
+     */
+    private volatile CancellationSignal mDownloadSignal;
 
     private ArtworkCache mArtworkCache;
     private SourceManager mSourceManager;
@@ -55,6 +55,22 @@ public class SourceSubscriberService extends IntentService {
         super("SourceSubscriberService");
     }
 
+    @Override
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if (intent != null && ACTION_PUBLISH_STATE.equals(intent.getAction())) {
+            // Called on the main thread while an older state may still be handled: A newer
+            // artwork cancels the download of the older one.
+            intent.putExtra(EXTRA_SEQUENCE, mLatestSequence.incrementAndGet());
+
+            CancellationSignal signal = mDownloadSignal;
+            if (signal != null) {
+                signal.cancel();
+            }
+        }
+
+        return super.onStartCommand(intent, flags, startId);
+    }
+
     @Override
     protected void onHandleIntent(Intent intent) {
         mSourceManager = SourceManager.getInstance(this);
@@ -82,65 +98,33 @@ public class SourceSubscriberService extends IntentService {
 
             mSourceManager.handlePublishState(token, state);
 
-            mArtworkCache.maybeDownloadCurrentArtworkSync();
-            sendArtworkToWearable(state);
-        }
-    }
-
-    private void sendArtworkToWearable(SourceState state) {
-        ComponentName componentName = mSourceManager.getSelectedSource();
-        Artwork artwork = state.getCurrentArtwork();
-
-        if (componentName == null || artwork == null) {
-            Log.d(TAG, "No artwork :(");
-            return;
-        }
-
-        File file = mArtworkCache.getArtworkCacheFile(componentName, state.getCurrentArtwork());
-        if (file == null) {
-            Log.d(TAG, "No artwork file :(");
-            return;
-        }
-
-        GoogleApiClient apiClient = new GoogleApiClient.Builder(this)
-                .addApi(Wearable.API)
-                .build();
+            int sequence = intent.getIntExtra(EXTRA_SEQUENCE, 0);
+            if (isSuperseded(sequence)) {
+                Log.d(TAG, "Skipping artwork of superseded state " + sequence);
+                return;
+            }
 
-        ConnectionResult result =
-                apiClient.blockingConnect(CLIENT_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
-        if (!result.isSuccess()) {
-            return;
-        }
+            CancellationSignal signal = new CancellationSignal();
+            mDownloadSignal = signal;
 
-        Log.d(TAG, "Sending file from path: " + file.getPath());
+            // A newer state may have been published before the signal has been set.
+            if (isSuperseded(sequence)) {
+                signal.cancel();
+            }
 
-        PutDataMapRequest putDataMapRequest = PutDataMapRequest.create(Constants.PATH_ARTWORK_UDPATE);
+            mArtworkCache.maybeDownloadCurrentArtworkSync(signal);
+            mDownloadSignal = null;
 
-        Bitmap bitmap = BitmapFactory.decodeFile(file.getPath());
+            if (signal.isCanceled() || isSuperseded(sequence)) {
+                Log.d(TAG, "Artwork of state " + sequence + " has been superseded");
+                return;
+            }
 
-        if (bitmap == null) {
-            Log.d(TAG, "Could not load bitmap :(");
-            return;
+            WearableManager.getInstance(this).sendArtworkToWearable();
         }
+    }
 
-        putDataMapRequest.getDataMap().putAsset(
-            Constants.KEY_ARTWORK_ASSET,
-            AssetHelper.createAssetFromBitmap(bitmap)
-        );
-
-        putDataMapRequest.getDataMap().putLong("foo", System.currentTimeMillis());
-
-        PutDataRequest request = putDataMapRequest.asPutDataRequest();
-        Wearable.DataApi.putDataItem(apiClient, request).setResultCallback(new ResultCallback<DataApi.DataItemResult>() {
-            @Override
-            public void onResult(DataApi.DataItemResult dataItemResult) {
-                if (!dataItemResult.getStatus().isSuccess()) {
-                    Log.e(TAG, "sendArtworkToWearable(): Failed to set the data, "
-                            + "status: " + dataItemResult.getStatus().getStatusCode());
-                } else {
-                    Log.d(TAG, "sendArtworkToWearable(): Success");
-                }
-            }
-        });
+    private boolean isSuperseded(int sequence) {
+        return sequence != mLatestSequence.get();
     }
-}
\ No newline at end of file
+}
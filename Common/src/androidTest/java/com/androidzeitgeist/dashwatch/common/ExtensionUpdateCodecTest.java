@@ -0,0 +1,221 @@
+/*
+ * Copyright (C) 2014 Sebastian Kaspari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.androidzeitgeist.dashwatch.common;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.net.Uri;
+import android.util.Log;
+
+import com.google.android.gms.wearable.DataMap;
+
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Round-trips updates through {@link ExtensionUpdateCodec} and through the plain data map
+ * encoding and compares the results and payload sizes of both.
+ */
+public class ExtensionUpdateCodecTest extends TestCase {
+    private static final String TAG = "DashWatch/ExtensionUpdateCodecTest";
+
+    private static final String PACKAGE = "net.nurik.roman.dashclock";
+    private static final String DIGEST = "0123456789ABCDEF0123456789ABCDEF01234567";
+
+    public void testRoundTripWithIntentFields() throws IOException {
+        Intent intent = new Intent(Intent.ACTION_VIEW)
+                .setData(Uri.parse("content://com.android.calendar/events/42"))
+                .setComponent(new ComponentName(PACKAGE, PACKAGE + ".calendar.CalendarActivity"))
+                .addCategory(Intent.CATEGORY_DEFAULT);
+
+        ExtensionUpdate update = createUpdate(3, PACKAGE + "/.calendar.CalendarExtension",
+                "Meeting", "Room 4", "10:00", intent, DIGEST);
+
+        assertRoundTrip(update);
+    }
+
+    public void testRoundTripWithIntentUri() throws IOException {
+        // Extras cannot be written field by field; the intent is written as an URI.
+        Intent intent = new Intent(Intent.ACTION_VIEW)
+                .setPackage(PACKAGE)
+                .putExtra("id", 42);
+
+        ExtensionUpdate update = createUpdate(0, PACKAGE + "/.gmail.GmailExtension",
+                "3 unread", "Hello", "3", intent, DIGEST);
+
+        assertRoundTrip(update);
+    }
+
+    public void testRoundTripWithNullAndEmptyStrings() throws IOException {
+        ExtensionUpdate update = createUpdate(1, PACKAGE + "/.weather.WeatherExtension",
+                null, "", null, null, null);
+        update.setVisible(false);
+
+        ExtensionUpdate decoded = assertRoundTrip(update);
+
+        assertNull(decoded.getTitle());
+        assertEquals("", decoded.getText());
+        assertNull(decoded.getStatus());
+        assertFalse(decoded.hasIntent());
+        assertNull(decoded.getIconDigest());
+    }
+
+    public void testRoundTripWithNonHexDigestAndUnusualComponent() throws IOException {
+        // Neither the digest nor the component can be written in their compact forms.
+        ExtensionUpdate update = createUpdate(2, "not-a-component", "Title", "Text", "Status",
+                null, "digest-of-unknown-format");
+
+        assertRoundTrip(update);
+    }
+
+    public void testPackageNamesAreInterned() throws IOException {
+        List<ExtensionUpdate> updates = createUpdates(10);
+
+        byte[] encoded = ExtensionUpdateCodec.encode(updates);
+
+        assertEquals(1, countOccurrences(encoded, PACKAGE.getBytes("UTF-8")));
+
+        List<ExtensionUpdate> decoded = ExtensionUpdateCodec.decode(encoded);
+        assertEquals(updates.size(), decoded.size());
+
+        for (int i = 0; i < updates.size(); i++) {
+            assertUpdateEquals(updates.get(i), decoded.get(i));
+        }
+    }
+
+    public void testEncodedIsSmallerThanDataMap() throws IOException {
+        for (ExtensionUpdate update : createUpdates(5)) {
+            byte[] encoded = ExtensionUpdateCodec.encode(update);
+
+            DataMap dataMap = new DataMap();
+            update.writeToDataMap(dataMap, false);
+            byte[] plain = dataMap.toByteArray();
+
+            Log.d(TAG, String.format("Size: codec=%d, data map=%d", encoded.length, plain.length));
+
+            assertTrue("Encoded update (" + encoded.length + " bytes) is not smaller than data map ("
+                    + plain.length + " bytes)", encoded.length < plain.length);
+        }
+    }
+
+    public void testThroughput() throws IOException {
+        List<ExtensionUpdate> updates = createUpdates(20);
+        int iterations = 200;
+
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            ExtensionUpdateCodec.decode(ExtensionUpdateCodec.encode(updates));
+        }
+        long codecNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            for (ExtensionUpdate update : updates) {
+                DataMap dataMap = new DataMap();
+                update.writeToDataMap(dataMap, false);
+                ExtensionUpdate.fromDataMap(DataMap.fromByteArray(dataMap.toByteArray()));
+            }
+        }
+        long dataMapNanos = System.nanoTime() - start;
+
+        // Timing depends on the device; only report it.
+        Log.d(TAG, String.format("Round trips of %d updates x %d: codec=%dms, data map=%dms",
+                updates.size(), iterations, codecNanos / 1000000, dataMapNanos / 1000000));
+    }
+
+    /**
+     * Encodes the update with both encodings, asserts that both decode to the original update and
+     * returns the update decoded by the codec.
+     */
+    private static ExtensionUpdate assertRoundTrip(ExtensionUpdate update) throws IOException {
+        ExtensionUpdate decoded = ExtensionUpdateCodec.decodeSingle(ExtensionUpdateCodec.encode(update));
+        assertUpdateEquals(update, decoded);
+
+        DataMap dataMap = new DataMap();
+        update.writeEncodedToDataMap(dataMap, false);
+        assertUpdateEquals(update, ExtensionUpdate.fromDataMap(DataMap.fromByteArray(dataMap.toByteArray())));
+
+        dataMap = new DataMap();
+        update.writeToDataMap(dataMap, false);
+        assertUpdateEquals(update, ExtensionUpdate.fromDataMap(DataMap.fromByteArray(dataMap.toByteArray())));
+
+        return decoded;
+    }
+
+    private static void assertUpdateEquals(ExtensionUpdate expected, ExtensionUpdate actual) {
+        assertNotNull(actual);
+        assertEquals(expected.getPosition(), actual.getPosition());
+        assertEquals(expected.getComponent(), actual.getComponent());
+        assertEquals(expected.getTitle(), actual.getTitle());
+        assertEquals(expected.getText(), actual.getText());
+        assertEquals(expected.getStatus(), actual.getStatus());
+        assertEquals(expected.isVisible(), actual.isVisible());
+        assertEquals(expected.getIconDigest(), actual.getIconDigest());
+        assertEquals(expected.hasIntent(), actual.hasIntent());
+        assertEquals(expected.getIntentUri(), actual.getIntentUri());
+        assertEquals(expected.getSyncHash(), actual.getSyncHash());
+    }
+
+    private static ExtensionUpdate createUpdate(int position, String component, String title,
+                                                String text, String status, Intent intent,
+                                                String iconDigest) {
+        ExtensionUpdate update = new ExtensionUpdate();
+        update.setPosition(position);
+        update.setComponent(component);
+        update.setTitle(title);
+        update.setText(text);
+        update.setStatus(status);
+        update.setVisible(true);
+        update.setIntent(intent);
+        update.setIcon(null, null, iconDigest);
+        return update;
+    }
+
+    private static List<ExtensionUpdate> createUpdates(int count) {
+        List<ExtensionUpdate> updates = new ArrayList<ExtensionUpdate>(count);
+
+        for (int i = 0; i < count; i++) {
+            Intent intent = new Intent(Intent.ACTION_VIEW)
+                    .setComponent(new ComponentName(PACKAGE, PACKAGE + ".Activity" + i));
+
+            updates.add(createUpdate(i, PACKAGE + "/.Extension" + i, "Title " + i,
+                    "Some longer expanded body text of extension " + i, "Status " + i, intent,
+                    DIGEST));
+        }
+
+        return updates;
+    }
+
+    private static int countOccurrences(byte[] data, byte[] pattern) {
+        int count = 0;
+
+        for (int i = 0; i <= data.length - pattern.length; i++) {
+            int j = 0;
+            while (j < pattern.length && data[i + j] == pattern[j]) {
+                j++;
+            }
+            if (j == pattern.length) {
+                count++;
+            }
+        }
+
+        return count;
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (C) 2014 Sebastian Kaspari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.androidzeitgeist.dashwatch.common;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.Log;
+
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.Asset;
+
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads many bitmap assets at once: The assets are fetched concurrently over the shared
+ * connection and decoded into bitmaps from the {@link BitmapPool} where possible.
+ */
+public class AssetBatchLoader {
+    private static final String TAG = "DashWatch/AssetBatchLoader";
+
+    private static final int THREAD_COUNT = 4;
+    private static final int ASSET_CONNECTION_TIMEOUT = 5000;
+
+    private static ExecutorService sExecutorService;
+
+    private static class LoadedAsset {
+        final String key;
+        final byte[] data;
+        final Bitmap bitmap;
+
+        LoadedAsset(String key, byte[] data, Bitmap bitmap) {
+            this.key = key;
+            this.data = data;
+            this.bitmap = bitmap;
+        }
+    }
+
+    public static interface OnAssetLoadedListener {
+        /**
+         * Called on the thread calling {@link #load(Context, Map, OnAssetLoadedListener)} as soon
+         * as an asset has been loaded.
+         *
+         * @param data the encoded image as it has been transferred or null if the asset could not
+         *             be loaded.
+         * @param bitmap the decoded bitmap or null if the asset could not be loaded.
+         */
+        void onAssetLoaded(String key, byte[] data, Bitmap bitmap);
+    }
+
+    private static synchronized ExecutorService getExecutorService() {
+        if (sExecutorService == null) {
+            sExecutorService = Executors.newFixedThreadPool(THREAD_COUNT);
+        }
+
+        return sExecutorService;
+    }
+
+    /**
+     * Loads all the given assets and blocks until every asset has been passed to the listener.
+     * Must not be called on the main thread.
+     */
+    public static void load(Context context, Map<String, Asset> assets, OnAssetLoadedListener listener) {
+        if (assets.isEmpty()) {
+            return;
+        }
+
+        final GoogleApiClient apiClient = ConnectionManager.getInstance(context)
+                .getConnectedClient(ASSET_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+
+        if (apiClient == null) {
+            Log.w(TAG, "No connection available");
+
+            for (String key : assets.keySet()) {
+                listener.onAssetLoaded(key, null, null);
+            }
+            return;
+        }
+
+        CompletionService<LoadedAsset> completionService =
+                new ExecutorCompletionService<LoadedAsset>(getExecutorService());
+
+        for (final Map.Entry<String, Asset> entry : assets.entrySet()) {
+            completionService.submit(new Callable<LoadedAsset>() {
+                @Override
+                public LoadedAsset call() {
+                    byte[] data = AssetHelper.loadBytesFromAsset(apiClient, entry.getValue());
+                    Bitmap bitmap = data != null ? decodePooled(data) : null;
+
+                    return new LoadedAsset(entry.getKey(), data, bitmap);
+                }
+            });
+        }
+
+        for (int i = 0; i < assets.size(); i++) {
+            try {
+                LoadedAsset result = completionService.take().get();
+                listener.onAssetLoaded(result.key, result.data, result.bitmap);
+            } catch (InterruptedException e) {
+                Log.w(TAG, "Loading assets has been interrupted", e);
+                return;
+            } catch (ExecutionException e) {
+                Log.w(TAG, "Loading asset caused an exception", e);
+            }
+        }
+    }
+
+    /**
+     * Decodes the image into a bitmap from the {@link BitmapPool} if there is a matching one.
+     */
+    public static Bitmap decodePooled(byte[] data) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        options.inBitmap = BitmapPool.getInstance().get(
+                options.outWidth, options.outHeight, Bitmap.Config.ARGB_8888);
+
+        try {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        } catch (IllegalArgumentException e) {
+            // The pooled bitmap could not be reused: Decode into a new bitmap.
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+    }
+}
@@ -18,15 +18,14 @@ package com.androidzeitgeist.dashwatch.common;
 
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
 import android.util.Log;
 
-import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.wearable.Asset;
 import com.google.android.gms.wearable.Wearable;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.concurrent.TimeUnit;
 
@@ -35,36 +34,148 @@ public class AssetHelper {
 
     private static final int ASSET_CONNECTION_TIMEOUT = 5000;
 
+    /**
+     * Policies for encoding images that are sent to the wearable. Lossy policies lower the quality
+     * step by step until the encoded image fits into the byte budget or the minimum quality is
+     * reached. Lossless policies never give up quality and only warn about a blown budget.
+     */
+    public enum Policy {
+        /**
+         * Small icon masks: Lossless, they compress well and must stay sharp.
+         */
+        ICON(Bitmap.CompressFormat.PNG, 100, 100, 64 * 1024),
+
+        /**
+         * Photographic artwork: Lossy, which is a lot faster and smaller than PNG.
+         */
+        ARTWORK(Bitmap.CompressFormat.WEBP, 85, 45, 150 * 1024);
+
+        private static final int QUALITY_STEP = 10;
+
+        public final Bitmap.CompressFormat format;
+        public final int quality;
+        public final int minQuality;
+        public final int maxBytes;
+
+        Policy(Bitmap.CompressFormat format, int quality, int minQuality, int maxBytes) {
+            this.format = format;
+            this.quality = quality;
+            this.minQuality = minQuality;
+            this.maxBytes = maxBytes;
+        }
+
+        public boolean isLossless() {
+            return format == Bitmap.CompressFormat.PNG;
+        }
+    }
+
+    public static class EncodedImage {
+        public final byte[] data;
+        public final Bitmap.CompressFormat format;
+        public final int quality;
+
+        private EncodedImage(byte[] data, Bitmap.CompressFormat format, int quality) {
+            this.data = data;
+            this.format = format;
+            this.quality = quality;
+        }
+
+        public int getSize() {
+            return data.length;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s@%d (%d bytes)", format, quality, data.length);
+        }
+    }
+
     public static Asset createAssetFromBitmap(Bitmap bitmap) {
+        return createAssetFromBitmap(bitmap, Policy.ICON);
+    }
+
+    public static Asset createAssetFromBitmap(Bitmap bitmap, Policy policy) {
+        return Asset.createFromBytes(encodeBitmap(bitmap, policy).data);
+    }
+
+    public static EncodedImage encodeBitmap(Bitmap bitmap, Policy policy) {
         final ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
-        bitmap.compress(Bitmap.CompressFormat.PNG, 100, byteStream);
-        return Asset.createFromBytes(byteStream.toByteArray());
+
+        int quality = policy.quality;
+        bitmap.compress(policy.format, quality, byteStream);
+
+        while (!policy.isLossless()
+                && byteStream.size() > policy.maxBytes
+                && quality - Policy.QUALITY_STEP >= policy.minQuality) {
+            quality -= Policy.QUALITY_STEP;
+
+            byteStream.reset();
+            bitmap.compress(policy.format, quality, byteStream);
+        }
+
+        EncodedImage image = new EncodedImage(byteStream.toByteArray(), policy.format, quality);
+
+        if (image.getSize() > policy.maxBytes) {
+            Log.w(TAG, String.format("Encoded image exceeds budget of %d bytes (%s): %s",
+                    policy.maxBytes, policy, image));
+        }
+
+        return image;
     }
 
-    public static Bitmap loadBitmapFromAsset(Context context, Asset asset) {
-        if (asset == null) {
-            throw new IllegalArgumentException("Asset must be non-null");
+    /**
+     * Returns the raw bytes of the asset or null if the asset could not be loaded.
+     */
+    public static byte[] loadBytesFromAsset(Context context, Asset asset) {
+        GoogleApiClient apiClient = ConnectionManager.getInstance(context)
+                .getConnectedClient(ASSET_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+        if (apiClient == null) {
+            return null;
         }
 
-        GoogleApiClient apiClient = new GoogleApiClient.Builder(context)
-                .addApi(Wearable.API)
-                .build();
+        return loadBytesFromAsset(apiClient, asset);
+    }
+
+    /**
+     * Returns the raw bytes of the asset or null if the asset could not be loaded. Blocks until
+     * the asset is available; the client must be connected.
+     */
+    public static byte[] loadBytesFromAsset(GoogleApiClient apiClient, Asset asset) {
+        InputStream assetInputStream = openAsset(apiClient, asset);
 
-        ConnectionResult result =
-                apiClient.blockingConnect(ASSET_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
-        if (!result.isSuccess()) {
+        if (assetInputStream == null) {
             return null;
         }
+
+        try {
+            ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+            IOUtil.readFullyWriteToOutputStream(assetInputStream, byteStream);
+            return byteStream.toByteArray();
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read asset", e);
+            return null;
+        } finally {
+            try {
+                assetInputStream.close();
+            } catch (IOException e) {
+                // Don't care..
+            }
+        }
+    }
+
+    private static InputStream openAsset(GoogleApiClient apiClient, Asset asset) {
+        if (asset == null) {
+            throw new IllegalArgumentException("Asset must be non-null");
+        }
+
         // convert asset into a file descriptor and block until it's ready
         InputStream assetInputStream = Wearable.DataApi.getFdForAsset(
         apiClient, asset).await().getInputStream();
-        apiClient.disconnect();
 
         if (assetInputStream == null) {
             Log.w(TAG, "Requested an unknown Asset.");
-            return null;
         }
-        // decode the stream into a bitmap
-        return BitmapFactory.decodeStream(assetInputStream);
+
+        return assetInputStream;
     }
 }
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2014 Sebastian Kaspari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.androidzeitgeist.dashwatch.common;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * A small pool of bitmaps that are not used anymore and can be decoded into again (See
+ * {@link android.graphics.BitmapFactory.Options#inBitmap}). Only bitmaps that are not displayed
+ * or referenced anywhere else may be returned to the pool.
+ */
+@TargetApi(Build.VERSION_CODES.KITKAT)
+public class BitmapPool {
+    private static final int MAX_POOL_SIZE = 16;
+
+    private static BitmapPool sInstance;
+
+    private final LinkedList<Bitmap> mBitmaps = new LinkedList<Bitmap>();
+
+    public static synchronized BitmapPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new BitmapPool();
+        }
+
+        return sInstance;
+    }
+
+    private BitmapPool() {
+    }
+
+    /**
+     * Returns a bitmap that is large enough to decode an image of the given size into, or null if
+     * there is no such bitmap in the pool.
+     */
+    public synchronized Bitmap get(int width, int height, Bitmap.Config config) {
+        if (!isSupported()) {
+            return null;
+        }
+
+        int requiredByteCount = width * height * getBytesPerPixel(config);
+
+        Iterator<Bitmap> iterator = mBitmaps.iterator();
+        while (iterator.hasNext()) {
+            Bitmap bitmap = iterator.next();
+
+            if (bitmap.getConfig() == config && bitmap.getAllocationByteCount() >= requiredByteCount) {
+                iterator.remove();
+                return bitmap;
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns a bitmap that is not used anymore to the pool.
+     */
+    public synchronized void put(Bitmap bitmap) {
+        if (!isSupported() || bitmap == null || !bitmap.isMutable() || bitmap.isRecycled()) {
+            return;
+        }
+
+        if (mBitmaps.contains(bitmap)) {
+            return;
+        }
+
+        if (mBitmaps.size() >= MAX_POOL_SIZE) {
+            mBitmaps.removeFirst();
+        }
+
+        mBitmaps.addLast(bitmap);
+    }
+
+    private static boolean isSupported() {
+        // Decoding into bitmaps of a different size is only supported since KitKat.
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT;
+    }
+
+    private static int getBytesPerPixel(Bitmap.Config config) {
+        if (config == Bitmap.Config.ARGB_8888) {
+            return 4;
+        } else if (config == Bitmap.Config.RGB_565 || config == Bitmap.Config.ARGB_4444) {
+            return 2;
+        }
+
+        return 1;
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2014 Sebastian Kaspari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.androidzeitgeist.dashwatch.common;
+
+import android.content.Context;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.android.gms.common.ConnectionResult;
+import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.Wearable;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Holds the one Google API Client (with the Wearable API) of this process and keeps it connected.
+ * Setting up a connection is expensive, so it is never disconnected once it has been connected.
+ *
+ * Failed connection attempts are retried with an exponential backoff.
+ */
+public class ConnectionManager {
+    private static final String TAG = "DashWatch/ConnectionManager";
+
+    private static final int CLIENT_CONNECTION_TIMEOUT = 15000;
+
+    private static final long MIN_RETRY_DELAY_MILLIS = 1000;
+    private static final long MAX_RETRY_DELAY_MILLIS = 5 * 60 * 1000;
+
+    private static ConnectionManager sInstance;
+
+    private final GoogleApiClient mGoogleApiClient;
+    private final ScheduledExecutorService mExecutorService;
+
+    private Future<GoogleApiClient> mPendingConnection;
+    private int mFailedAttempts;
+    private long mLastConnectLatencyMillis = -1;
+
+    public static synchronized ConnectionManager getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ConnectionManager(context);
+        }
+
+        return sInstance;
+    }
+
+    private ConnectionManager(Context context) {
+        mExecutorService = Executors.newSingleThreadScheduledExecutor();
+        mGoogleApiClient = new GoogleApiClient.Builder(context.getApplicationContext())
+                .addApi(Wearable.API)
+                .addConnectionCallbacks(new GoogleApiClient.ConnectionCallbacks() {
+                    @Override
+                    public void onConnected(Bundle bundle) {
+                        Log.d(TAG, "onConnected()");
+                    }
+
+                    @Override
+                    public void onConnectionSuspended(int cause) {
+                        Log.w(TAG, "onConnectionSuspended(): cause=" + cause);
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Returns a future that completes with the connected client, or with null if no connection
+     * could be established. Connection attempts that happen shortly after a failed attempt are
+     * delayed.
+     */
+    public synchronized Future<GoogleApiClient> connect() {
+        if (mGoogleApiClient.isConnected()) {
+            FutureTask<GoogleApiClient> future = new FutureTask<GoogleApiClient>(new Callable<GoogleApiClient>() {
+                @Override
+                public GoogleApiClient call() {
+                    return mGoogleApiClient;
+                }
+            });
+            future.run();
+            return future;
+        }
+
+        if (mPendingConnection == null || mPendingConnection.isDone()) {
+            mPendingConnection = mExecutorService.schedule(new Callable<GoogleApiClient>() {
+                @Override
+                public GoogleApiClient call() {
+                    return blockingConnect();
+                }
+            }, getRetryDelay(), TimeUnit.MILLISECONDS);
+        }
+
+        return mPendingConnection;
+    }
+
+    /**
+     * Blocks until the client is connected. Must not be called on the main thread.
+     *
+     * @return the connected client or null if no connection could be established in time.
+     */
+    public GoogleApiClient getConnectedClient(long timeout, TimeUnit unit) {
+        try {
+            return connect().get(timeout, unit);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Waiting for connection has been interrupted", e);
+        } catch (ExecutionException e) {
+            Log.w(TAG, "Connecting caused an exception", e);
+        } catch (TimeoutException e) {
+            Log.w(TAG, "Timeout while waiting for connection");
+        }
+
+        return null;
+    }
+
+    /**
+     * Blocks until the client is connected. Must not be called on the main thread.
+     *
+     * @return the connected client or null if no connection could be established. Callers do not
+     *         wait for connection attempts that are delayed by a long backoff.
+     */
+    public GoogleApiClient getConnectedClient() {
+        return getConnectedClient(CLIENT_CONNECTION_TIMEOUT + MIN_RETRY_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Returns how long the last successful connection attempt took or -1 if there has not been
+     * any successful connection attempt yet.
+     */
+    public synchronized long getLastConnectLatencyMillis() {
+        return mLastConnectLatencyMillis;
+    }
+
+    private GoogleApiClient blockingConnect() {
+        if (mGoogleApiClient.isConnected()) {
+            return mGoogleApiClient;
+        }
+
+        long start = SystemClock.elapsedRealtime();
+
+        ConnectionResult result = mGoogleApiClient.blockingConnect(
+                CLIENT_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
+
+        long latency = SystemClock.elapsedRealtime() - start;
+
+        synchronized (this) {
+            if (result.isSuccess()) {
+                Log.d(TAG, String.format("Connected in %d ms", latency));
+
+                mFailedAttempts = 0;
+                mLastConnectLatencyMillis = latency;
+                return mGoogleApiClient;
+            }
+
+            mFailedAttempts++;
+
+            Log.w(TAG, String.format("Connection attempt %d failed after %d ms: %d",
+                    mFailedAttempts, latency, result.getErrorCode()));
+
+            return null;
+        }
+    }
+
+    private synchronized long getRetryDelay() {
+        if (mFailedAttempts == 0) {
+            return 0;
+        }
+
+        return Math.min(MAX_RETRY_DELAY_MILLIS,
+                MIN_RETRY_DELAY_MILLIS << Math.min(mFailedAttempts - 1, 20));
+    }
+}
@@ -1,36 +0,0 @@
-/*
- * Copyright (C) 2014 Sebastian Kaspari
- *
- * Licensed under the Apache License, Version 2.0 (the "License");
- * you may not use this file except in compliance with the License.
- * You may obtain a copy of the License at
- *
- *     http://www.apache.org/licenses/LICENSE-2.0
- *
- * Unless required by applicable law or agreed to in writing, software
- * distributed under the License is distributed on an "AS IS" BASIS,
- * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
- * See the License for the specific language governing permissions and
- * limitations under the License.
- */
-
-package com.androidzeitgeist.dashwatch.common;
-
-import com.google.android.gms.common.ConnectionResult;
-import com.google.android.gms.common.api.GoogleApiClient;
-
-import java.util.concurrent.TimeUnit;
-
-public class ConnectionUtil {
-    private static final int CLIENT_CONNECTION_TIMEOUT = 15000;
-
-    public static boolean validateConnection(GoogleApiClient client) {
-        if (client.isConnected()) {
-            return true;
-        }
-
-        ConnectionResult result = client.blockingConnect(CLIENT_CONNECTION_TIMEOUT, TimeUnit.MILLISECONDS);
-
-        return result.isSuccess();
-    }
-}
@@ -23,15 +23,25 @@ public final class Constants {
     private Constants() {};
 
     public static final String PATH_EXTENSION_UPDATE = "/extension/update";
+    public static final String PATH_EXTENSION_UPDATE_PREFIX = PATH_EXTENSION_UPDATE + "/";
+    public static final String PATH_EXTENSION_SNAPSHOT = "/extension/snapshot";
     public static final String PATH_ARTWORK_UDPATE = "/artwork/update";
 
     public static final String PATH_INTENT = "/intent";
     public static final String PATH_SETUP = "/setup";
+    public static final String PATH_ICON_ACK = "/icon/ack";
+    public static final String PATH_ICON_MISSING = "/icon/missing";
 
     public static final String EXTRA_INTENT_URI = "intentUri";
     public static final String EXTRA_EXTENSION_COMPONENT = "extension_component";
 
     public static final String KEY_ARTWORK_ASSET = "artwork_asset";
 
+    public static final String KEY_DISPLAY_WIDTH = "display_width";
+    public static final String KEY_DISPLAY_HEIGHT = "display_height";
+    public static final String KEY_ICON_DIGESTS = "icon_digests";
+    public static final String KEY_SNAPSHOT_VERSION = "snapshot_version";
+    public static final String KEY_CODECS = "codecs";
+
     public static final String ACTION_DISMISS = "com.androidzeitgeist.dashwatch.notification.DISMISS";
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2014 Sebastian Kaspari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.androidzeitgeist.dashwatch.common;
+
+import android.util.Log;
+
+import com.google.android.gms.wearable.Asset;
+import com.google.android.gms.wearable.DataMap;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The state of all active extensions packed into a single data item. The wearable replaces its
+ * whole state with a snapshot instead of applying one update after another.
+ *
+ * The updates are written as one binary payload (See {@link ExtensionUpdateCodec}). Icons are
+ * referenced by their digest and only the icons the wearable does not have yet are attached as
+ * separate assets.
+ */
+public class ExtensionSnapshot {
+    private static final String TAG = "DashWatch/ExtensionSnapshot";
+
+    /**
+     * Version of the snapshot format. Version 1 used its own encoding, version 2 is encoded with
+     * {@link ExtensionUpdateCodec}.
+     */
+    public static final int VERSION = 2;
+
+    private static final String KEY_PAYLOAD = "payload";
+    private static final String KEY_ICON_PREFIX = "icon_";
+
+    private final List<ExtensionUpdate> updates;
+
+    public ExtensionSnapshot(List<ExtensionUpdate> updates) {
+        this.updates = updates;
+    }
+
+    public List<ExtensionUpdate> getUpdates() {
+        return updates;
+    }
+
+    /**
+     * Reads a snapshot from the data map. Icons are not loaded, see {@link #getIconAssets(DataMap)}.
+     *
+     * @return the snapshot or null if the payload could not be read.
+     */
+    public static ExtensionSnapshot fromDataMap(DataMap dataMap) {
+        byte[] payload = dataMap.getByteArray(KEY_PAYLOAD);
+
+        if (payload == null) {
+            Log.w(TAG, "Snapshot without payload");
+            return null;
+        }
+
+        try {
+            return fromByteArray(payload);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read snapshot", e);
+            return null;
+        }
+    }
+
+    /**
+     * Returns the icon assets attached to the data map, keyed by the digest of the icon.
+     */
+    public static Map<String, Asset> getIconAssets(DataMap dataMap) {
+        Map<String, Asset> assets = new HashMap<String, Asset>();
+
+        for (String key : dataMap.keySet()) {
+            if (key.startsWith(KEY_ICON_PREFIX)) {
+                assets.put(key.substring(KEY_ICON_PREFIX.length()), dataMap.getAsset(key));
+            }
+        }
+
+        return assets;
+    }
+
+    /**
+     * Writes the snapshot to the data map and attaches the icons whose digests are in the given
+     * collection.
+     */
+    public void writeToDataMap(DataMap dataMap, Collection<String> attachIcons) {
+        dataMap.putByteArray(KEY_PAYLOAD, toByteArray());
+
+        for (ExtensionUpdate update : updates) {
+            String digest = update.getIconDigest();
+
+            if (digest == null || !attachIcons.contains(digest)
+                    || dataMap.containsKey(KEY_ICON_PREFIX + digest)) {
+                continue;
+            }
+
+            if (update.getIconData() != null) {
+                dataMap.putAsset(KEY_ICON_PREFIX + digest, Asset.createFromBytes(update.getIconData()));
+            } else if (update.getIcon() != null) {
+                dataMap.putAsset(KEY_ICON_PREFIX + digest, AssetHelper.createAssetFromBitmap(update.getIcon()));
+            }
+        }
+    }
+
+    public byte[] toByteArray() {
+        return ExtensionUpdateCodec.encode(updates);
+    }
+
+    public static ExtensionSnapshot fromByteArray(byte[] payload) throws IOException {
+        return new ExtensionSnapshot(ExtensionUpdateCodec.decode(payload));
+    }
+}
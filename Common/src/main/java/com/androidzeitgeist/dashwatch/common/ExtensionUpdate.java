@@ -16,14 +16,15 @@
 
 package com.androidzeitgeist.dashwatch.common;
 
-import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
 import android.util.Log;
 
 import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.Asset;
 import com.google.android.gms.wearable.DataMap;
 
+import java.io.IOException;
 import java.net.URISyntaxException;
 
 public class ExtensionUpdate {
@@ -37,6 +38,8 @@ public class ExtensionUpdate {
     private static final String KEY_STATUS = "status";
     private static final String KEY_VISIBLE = "visible";
     private static final String KEY_ICON = "icon";
+    private static final String KEY_ICON_DIGEST = "icon_digest";
+    private static final String KEY_ENCODED = "encoded";
 
     private int position;
     private String title;
@@ -46,8 +49,31 @@ public class ExtensionUpdate {
     private String status;
     private boolean visible;
     private Bitmap icon;
+    private byte[] iconData;
+    private String iconDigest;
+
+    // Derived values computed on first use. Setters reset them.
+    private String intentUri;
+    private long fingerprint;
+    private boolean hasFingerprint;
+    private String syncHash;
+
+    /**
+     * Creates an update from the data map. The icon is not loaded, see {@link #getIconAsset(DataMap)}
+     * and {@link #getIconDigest()}.
+     *
+     * @return the update or null if the update has been encoded and could not be decoded.
+     */
+    public static ExtensionUpdate fromDataMap(DataMap dataMap) {
+        if (dataMap.containsKey(KEY_ENCODED)) {
+            try {
+                return ExtensionUpdateCodec.decodeSingle(dataMap.getByteArray(KEY_ENCODED));
+            } catch (IOException e) {
+                Log.w(TAG, "Unable to decode update", e);
+                return null;
+            }
+        }
 
-    public static ExtensionUpdate fromDataMap(Context context, DataMap dataMap) {
         ExtensionUpdate update = new ExtensionUpdate();
 
         update.setPosition(dataMap.getInt(KEY_POSITION));
@@ -56,10 +82,7 @@ public class ExtensionUpdate {
         update.setComponent(dataMap.getString(KEY_COMPONENT));
         update.setStatus(dataMap.getString(KEY_STATUS));
         update.setVisible(dataMap.getBoolean(KEY_VISIBLE));
-
-        if (dataMap.containsKey(KEY_ICON)) {
-            update.setIcon(AssetHelper.loadBitmapFromAsset(context, dataMap.getAsset(KEY_ICON)));
-        }
+        update.setIcon(null, null, dataMap.getString(KEY_ICON_DIGEST));
 
         if (dataMap.containsKey(KEY_INTENT)) {
             try {
@@ -72,7 +95,24 @@ public class ExtensionUpdate {
         return update;
     }
 
+    /**
+     * Returns the icon asset of an update written to the data map or null if the icon has not
+     * been attached.
+     */
+    public static Asset getIconAsset(DataMap dataMap) {
+        return dataMap.containsKey(KEY_ICON) ? dataMap.getAsset(KEY_ICON) : null;
+    }
+
     public void writeToDataMap(DataMap dataMap) {
+        writeToDataMap(dataMap, true);
+    }
+
+    /**
+     * Writes this update to the data map. The icon is always identified by its digest; the icon
+     * itself is only attached as an asset if requested. Receivers that already know the digest do
+     * not need the asset.
+     */
+    public void writeToDataMap(DataMap dataMap, boolean attachIcon) {
         dataMap.putInt(KEY_POSITION, position);
         dataMap.putString(KEY_TITLE, title);
         dataMap.putString(KEY_TEXT, text);
@@ -80,31 +120,127 @@ public class ExtensionUpdate {
         dataMap.putString(KEY_STATUS, status);
         dataMap.putBoolean(KEY_VISIBLE, visible);
 
-        if (icon != null) {
-            dataMap.putAsset(KEY_ICON, AssetHelper.createAssetFromBitmap(icon));
+        if (getIconDigest() != null) {
+            dataMap.putString(KEY_ICON_DIGEST, getIconDigest());
         } else {
-            dataMap.remove(KEY_ICON);
+            dataMap.remove(KEY_ICON_DIGEST);
         }
 
+        writeIconToDataMap(dataMap, attachIcon);
+
         if (hasIntent()) {
-            dataMap.putString(KEY_INTENT, intent.toUri(0));
+            dataMap.putString(KEY_INTENT, getIntentUri());
         } else {
             dataMap.remove(KEY_INTENT);
         }
     }
 
-    public String getContentHash() {
-        return Hash.sha1(String.format(
-            "%s-%s-%s-%s",
-            title,
-            text,
-            component,
-            intent != null ? intent.toUri(0) : ""
-        ));
+    /**
+     * Writes this update to the data map encoded with {@link ExtensionUpdateCodec}. Only receivers
+     * that support the codec can read it. The icon is attached like in
+     * {@link #writeToDataMap(DataMap, boolean)}.
+     */
+    public void writeEncodedToDataMap(DataMap dataMap, boolean attachIcon) {
+        dataMap.putByteArray(KEY_ENCODED, ExtensionUpdateCodec.encode(this));
+
+        writeIconToDataMap(dataMap, attachIcon);
+    }
+
+    private void writeIconToDataMap(DataMap dataMap, boolean attachIcon) {
+        if (attachIcon && iconData != null) {
+            dataMap.putAsset(KEY_ICON, Asset.createFromBytes(iconData));
+        } else if (attachIcon && icon != null) {
+            dataMap.putAsset(KEY_ICON, AssetHelper.createAssetFromBitmap(icon));
+        } else {
+            dataMap.remove(KEY_ICON);
+        }
+    }
+
+    /**
+     * Returns the path of the data item holding the updates of the given extension component.
+     */
+    public static String getDataPath(String component) {
+        return Constants.PATH_EXTENSION_UPDATE_PREFIX + component;
+    }
+
+    /**
+     * Returns the extension component of a data item path created by {@link #getDataPath(String)}
+     * or null if the path does not belong to an extension.
+     */
+    public static String getComponentFromDataPath(String path) {
+        if (path == null || !path.startsWith(Constants.PATH_EXTENSION_UPDATE_PREFIX)) {
+            return null;
+        }
+
+        return path.substring(Constants.PATH_EXTENSION_UPDATE_PREFIX.length());
+    }
+
+    public String getDataPath() {
+        return getDataPath(component);
+    }
+
+    /**
+     * Returns a 64 bit fingerprint (FNV-1a) of the content shown in a notification: title, text,
+     * component and intent. The fingerprint is computed once and does not allocate memory.
+     */
+    public long getFingerprint() {
+        if (!hasFingerprint) {
+            long hash = Hash.FNV_64_INIT;
+            hash = Hash.fnv64(hash, title);
+            hash = Hash.fnv64(hash, text);
+            hash = Hash.fnv64(hash, component);
+            hash = Hash.fnv64(hash, getIntentUri());
+
+            fingerprint = hash;
+            hasFingerprint = true;
+        }
+
+        return fingerprint;
+    }
+
+    /**
+     * Returns a hash over all the data written by {@link #writeToDataMap(DataMap)}. Updates with
+     * the same sync hash result in the same data on the wearable.
+     */
+    public String getSyncHash() {
+        if (syncHash == null) {
+            String uri = getIntentUri();
+            String digest = getIconDigest();
+
+            syncHash = Hash.sha1(new StringBuilder()
+                    .append(position).append('-')
+                    .append(title).append('-')
+                    .append(text).append('-')
+                    .append(component).append('-')
+                    .append(status).append('-')
+                    .append(visible).append('-')
+                    .append(uri != null ? uri : "").append('-')
+                    .append(digest != null ? digest : "")
+                    .toString());
+        }
+
+        return syncHash;
+    }
+
+    /**
+     * Returns the intent as URI or null if this update has no intent. The URI is only created once.
+     */
+    public String getIntentUri() {
+        if (intentUri == null && intent != null) {
+            intentUri = intent.toUri(0);
+        }
+
+        return intentUri;
+    }
+
+    private void invalidate() {
+        hasFingerprint = false;
+        syncHash = null;
     }
 
     public void setTitle(String title) {
         this.title = title;
+        invalidate();
     }
 
     public String getTitle() {
@@ -113,6 +249,7 @@ public class ExtensionUpdate {
 
     public void setText(String content) {
         this.text = content;
+        invalidate();
     }
 
     public String getText() {
@@ -121,6 +258,7 @@ public class ExtensionUpdate {
 
     public void setComponent(String component) {
         this.component = component;
+        invalidate();
     }
 
     public String getComponent() {
@@ -129,6 +267,8 @@ public class ExtensionUpdate {
 
     public void setIntent(Intent intent) {
         this.intent = intent;
+        this.intentUri = null;
+        invalidate();
     }
 
     public Intent getIntent() {
@@ -141,6 +281,7 @@ public class ExtensionUpdate {
 
     public void setVisible(boolean visible) {
         this.visible = visible;
+        invalidate();
     }
 
     public boolean isVisible() {
@@ -149,6 +290,7 @@ public class ExtensionUpdate {
 
     public void setStatus(String status) {
         this.status = status;
+        invalidate();
     }
 
     public String getStatus() {
@@ -157,6 +299,7 @@ public class ExtensionUpdate {
 
     public void setPosition(int position) {
         this.position = position;
+        invalidate();
     }
 
     public int getPosition() {
@@ -164,10 +307,40 @@ public class ExtensionUpdate {
     }
 
     public void setIcon(Bitmap icon) {
+        setIcon(icon, null, null);
+    }
+
+    /**
+     * Sets an icon whose encoded image data and digest are already known, so that they are not
+     * computed again for this update.
+     */
+    public void setIcon(Bitmap icon, byte[] iconData, String iconDigest) {
         this.icon = icon;
+        this.iconData = iconData;
+        this.iconDigest = iconDigest;
+        invalidate();
     }
 
     public Bitmap getIcon() {
         return icon;
     }
+
+    /**
+     * Returns the encoded image data of the icon or null if it is not known.
+     */
+    public byte[] getIconData() {
+        return iconData;
+    }
+
+    /**
+     * Returns a hash of the icon's pixel data (identifying the icon) or null if this update has
+     * no icon.
+     */
+    public String getIconDigest() {
+        if (iconDigest == null && icon != null) {
+            iconDigest = Hash.sha1(icon);
+        }
+
+        return iconDigest;
+    }
 }
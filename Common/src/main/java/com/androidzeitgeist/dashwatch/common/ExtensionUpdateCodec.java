@@ -0,0 +1,462 @@
+/*
+ * Copyright (C) 2014 Sebastian Kaspari
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.androidzeitgeist.dashwatch.common;
+
+import android.content.ComponentName;
+import android.content.Intent;
+import android.net.Uri;
+import android.util.Log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compact binary encoding of extension updates.
+ *
+ * Layout: A version byte, a table of package names, the number of updates and the updates
+ * themselves. Numbers are written as varints. Package names (of extension components and of
+ * intents) are written once into the table and referenced by their index. Intents without extras
+ * are written field by field instead of as (much longer) intent URIs. Icon digests are written as
+ * raw bytes instead of hex strings.
+ */
+public class ExtensionUpdateCodec {
+    private static final String TAG = "DashWatch/ExtensionUpdateCodec";
+
+    /**
+     * Version of the encoding. Decoding payloads of a different version fails.
+     */
+    public static final int VERSION = 1;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private static final int FLAG_VISIBLE = 1;
+    private static final int FLAG_INTENT_FIELDS = 1 << 1;
+    private static final int FLAG_INTENT_URI = 1 << 2;
+    private static final int FLAG_ICON_DIGEST = 1 << 3;
+    private static final int FLAG_ICON_DIGEST_RAW = 1 << 4;
+
+    private static final int INTENT_ACTION = 1;
+    private static final int INTENT_DATA = 1 << 1;
+    private static final int INTENT_TYPE = 1 << 2;
+    private static final int INTENT_PACKAGE = 1 << 3;
+    private static final int INTENT_COMPONENT = 1 << 4;
+    private static final int INTENT_CATEGORIES = 1 << 5;
+
+    private static final int RAW_DIGEST_LENGTH = 20;
+    private static final String HEXES = "0123456789ABCDEF";
+
+    public static byte[] encode(ExtensionUpdate update) {
+        return encode(Collections.singletonList(update));
+    }
+
+    public static byte[] encode(List<ExtensionUpdate> updates) {
+        Writer body = new Writer();
+
+        body.writeVarint(updates.size());
+        for (ExtensionUpdate update : updates) {
+            writeUpdate(body, update);
+        }
+
+        Writer out = new Writer();
+        out.write(VERSION);
+        out.writeVarint(body.strings.size());
+        for (String string : body.strings) {
+            out.writeString(string);
+        }
+        out.writeData(body.toByteArray());
+
+        return out.toByteArray();
+    }
+
+    public static List<ExtensionUpdate> decode(byte[] data) throws IOException {
+        Reader in = new Reader(data);
+
+        int version = in.read();
+        if (version != VERSION) {
+            throw new IOException("Unknown codec version: " + version);
+        }
+
+        int stringCount = in.readVarint();
+        for (int i = 0; i < stringCount; i++) {
+            in.strings.add(in.readString());
+        }
+
+        int count = in.readVarint();
+        List<ExtensionUpdate> updates = new ArrayList<ExtensionUpdate>(count);
+
+        for (int i = 0; i < count; i++) {
+            updates.add(readUpdate(in));
+        }
+
+        return updates;
+    }
+
+    /**
+     * Decodes a payload created by {@link #encode(ExtensionUpdate)}.
+     */
+    public static ExtensionUpdate decodeSingle(byte[] data) throws IOException {
+        List<ExtensionUpdate> updates = decode(data);
+
+        if (updates.size() != 1) {
+            throw new IOException("Expected one update, got " + updates.size());
+        }
+
+        return updates.get(0);
+    }
+
+    private static void writeUpdate(Writer out, ExtensionUpdate update) {
+        Intent intent = update.getIntent();
+        String digest = update.getIconDigest();
+
+        int flags = 0;
+        if (update.isVisible()) {
+            flags |= FLAG_VISIBLE;
+        }
+        if (intent != null) {
+            flags |= canWriteIntentFields(intent) ? FLAG_INTENT_FIELDS : FLAG_INTENT_URI;
+        }
+        if (digest != null) {
+            flags |= isHexDigest(digest) ? FLAG_ICON_DIGEST_RAW : FLAG_ICON_DIGEST;
+        }
+
+        out.writeVarint(flags);
+        out.writeVarint(update.getPosition());
+        out.writeComponent(update.getComponent());
+        out.writeNullableString(update.getTitle());
+        out.writeNullableString(update.getText());
+        out.writeNullableString(update.getStatus());
+
+        if ((flags & FLAG_INTENT_FIELDS) != 0) {
+            writeIntentFields(out, intent);
+        } else if ((flags & FLAG_INTENT_URI) != 0) {
+            out.writeString(update.getIntentUri());
+        }
+
+        if ((flags & FLAG_ICON_DIGEST_RAW) != 0) {
+            for (int i = 0; i < RAW_DIGEST_LENGTH; i++) {
+                out.write((HEXES.indexOf(digest.charAt(2 * i)) << 4) | HEXES.indexOf(digest.charAt(2 * i + 1)));
+            }
+        } else if ((flags & FLAG_ICON_DIGEST) != 0) {
+            out.writeString(digest);
+        }
+    }
+
+    private static ExtensionUpdate readUpdate(Reader in) throws IOException {
+        ExtensionUpdate update = new ExtensionUpdate();
+
+        int flags = in.readVarint();
+        update.setVisible((flags & FLAG_VISIBLE) != 0);
+        update.setPosition(in.readVarint());
+        update.setComponent(in.readComponent());
+        update.setTitle(in.readNullableString());
+        update.setText(in.readNullableString());
+        update.setStatus(in.readNullableString());
+
+        if ((flags & FLAG_INTENT_FIELDS) != 0) {
+            update.setIntent(readIntentFields(in));
+        } else if ((flags & FLAG_INTENT_URI) != 0) {
+            try {
+                update.setIntent(Intent.parseUri(in.readString(), 0));
+            } catch (URISyntaxException e) {
+                Log.w(TAG, "Unable to parse intent uri", e);
+            }
+        }
+
+        if ((flags & FLAG_ICON_DIGEST_RAW) != 0) {
+            StringBuilder digest = new StringBuilder(2 * RAW_DIGEST_LENGTH);
+            for (int i = 0; i < RAW_DIGEST_LENGTH; i++) {
+                int b = in.read();
+                digest.append(HEXES.charAt(b >> 4)).append(HEXES.charAt(b & 0x0F));
+            }
+            update.setIcon(null, null, digest.toString());
+        } else if ((flags & FLAG_ICON_DIGEST) != 0) {
+            update.setIcon(null, null, in.readString());
+        }
+
+        return update;
+    }
+
+    /**
+     * Only intents without extras or other rarely used fields are written field by field. All
+     * other intents are written as URI.
+     */
+    private static boolean canWriteIntentFields(Intent intent) {
+        return intent.getExtras() == null
+                && intent.getSelector() == null
+                && intent.getClipData() == null
+                && intent.getSourceBounds() == null;
+    }
+
+    private static void writeIntentFields(Writer out, Intent intent) {
+        Set<String> categories = intent.getCategories();
+        ComponentName component = intent.getComponent();
+
+        int fields = 0;
+        if (intent.getAction() != null) {
+            fields |= INTENT_ACTION;
+        }
+        if (intent.getData() != null) {
+            fields |= INTENT_DATA;
+        }
+        if (intent.getType() != null) {
+            fields |= INTENT_TYPE;
+        }
+        if (intent.getPackage() != null) {
+            fields |= INTENT_PACKAGE;
+        }
+        if (component != null) {
+            fields |= INTENT_COMPONENT;
+        }
+        if (categories != null && !categories.isEmpty()) {
+            fields |= INTENT_CATEGORIES;
+        }
+
+        out.writeVarint(fields);
+        out.writeVarint(intent.getFlags());
+
+        if ((fields & INTENT_ACTION) != 0) {
+            out.writeString(intent.getAction());
+        }
+        if ((fields & INTENT_DATA) != 0) {
+            out.writeString(intent.getData().toString());
+        }
+        if ((fields & INTENT_TYPE) != 0) {
+            out.writeString(intent.getType());
+        }
+        if ((fields & INTENT_PACKAGE) != 0) {
+            out.writeVarint(out.intern(intent.getPackage()));
+        }
+        if ((fields & INTENT_COMPONENT) != 0) {
+            out.writeComponent(component.flattenToString());
+        }
+        if ((fields & INTENT_CATEGORIES) != 0) {
+            out.writeVarint(categories.size());
+            for (String category : categories) {
+                out.writeString(category);
+            }
+        }
+    }
+
+    private static Intent readIntentFields(Reader in) throws IOException {
+        Intent intent = new Intent();
+
+        int fields = in.readVarint();
+        intent.setFlags(in.readVarint());
+
+        if ((fields & INTENT_ACTION) != 0) {
+            intent.setAction(in.readString());
+        }
+
+        Uri data = (fields & INTENT_DATA) != 0 ? Uri.parse(in.readString()) : null;
+        String type = (fields & INTENT_TYPE) != 0 ? in.readString() : null;
+        if (data != null || type != null) {
+            intent.setDataAndType(data, type);
+        }
+
+        if ((fields & INTENT_PACKAGE) != 0) {
+            intent.setPackage(in.readInternedString());
+        }
+        if ((fields & INTENT_COMPONENT) != 0) {
+            intent.setComponent(ComponentName.unflattenFromString(in.readComponent()));
+        }
+        if ((fields & INTENT_CATEGORIES) != 0) {
+            int count = in.readVarint();
+            for (int i = 0; i < count; i++) {
+                intent.addCategory(in.readString());
+            }
+        }
+
+        return intent;
+    }
+
+    private static boolean isHexDigest(String digest) {
+        if (digest.length() != 2 * RAW_DIGEST_LENGTH) {
+            return false;
+        }
+
+        for (int i = 0; i < digest.length(); i++) {
+            if (HEXES.indexOf(digest.charAt(i)) == -1) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static class Writer extends ByteArrayOutputStream {
+        final List<String> strings = new ArrayList<String>();
+        final Map<String, Integer> indices = new HashMap<String, Integer>();
+
+        int intern(String string) {
+            Integer index = indices.get(string);
+
+            if (index == null) {
+                index = strings.size();
+                strings.add(string);
+                indices.put(string, index);
+            }
+
+            return index;
+        }
+
+        void writeData(byte[] data) {
+            write(data, 0, data.length);
+        }
+
+        void writeVarint(int value) {
+            while ((value & ~0x7F) != 0) {
+                write((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            write(value);
+        }
+
+        void writeString(String value) {
+            byte[] data = value.getBytes(UTF_8);
+            writeVarint(data.length);
+            writeData(data);
+        }
+
+        void writeNullableString(String value) {
+            if (value == null) {
+                writeVarint(0);
+                return;
+            }
+
+            byte[] data = value.getBytes(UTF_8);
+            writeVarint(data.length + 1);
+            writeData(data);
+        }
+
+        /**
+         * Writes a flattened component name: The package is interned and the class name is
+         * shortened if it starts with the package name (like
+         * {@link ComponentName#flattenToShortString()}).
+         */
+        void writeComponent(String component) {
+            int separator = component != null ? component.indexOf('/') : -1;
+
+            if (separator == -1) {
+                writeVarint(0);
+                writeNullableString(component);
+                return;
+            }
+
+            String packageName = component.substring(0, separator);
+            String className = component.substring(separator + 1);
+
+            if (className.startsWith(packageName + ".")) {
+                className = className.substring(packageName.length());
+            }
+
+            writeVarint(intern(packageName) + 1);
+            writeString(className);
+        }
+    }
+
+    private static class Reader {
+        final List<String> strings = new ArrayList<String>();
+
+        private final byte[] data;
+        private int offset;
+
+        Reader(byte[] data) {
+            this.data = data;
+        }
+
+        int read() throws IOException {
+            if (offset >= data.length) {
+                throw new IOException("Unexpected end of payload");
+            }
+
+            return data[offset++] & 0xFF;
+        }
+
+        int readVarint() throws IOException {
+            int value = 0;
+
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = read();
+                value |= (b & 0x7F) << shift;
+
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+
+            throw new IOException("Malformed varint");
+        }
+
+        String readString() throws IOException {
+            return readBytesAsString(readVarint());
+        }
+
+        String readNullableString() throws IOException {
+            int length = readVarint();
+            return length == 0 ? null : readBytesAsString(length - 1);
+        }
+
+        String readInternedString() throws IOException {
+            int index = readVarint();
+
+            if (index >= strings.size()) {
+                throw new IOException("Unknown string index: " + index);
+            }
+
+            return strings.get(index);
+        }
+
+        String readComponent() throws IOException {
+            int packageIndex = readVarint();
+
+            if (packageIndex == 0) {
+                return readNullableString();
+            }
+
+            if (packageIndex > strings.size()) {
+                throw new IOException("Unknown string index: " + packageIndex);
+            }
+
+            String packageName = strings.get(packageIndex - 1);
+            String className = readString();
+
+            if (className.startsWith(".")) {
+                className = packageName + className;
+            }
+
+            return packageName + "/" + className;
+        }
+
+        private String readBytesAsString(int length) throws IOException {
+            if (length < 0 || offset + length > data.length) {
+                throw new IOException("Unexpected end of payload");
+            }
+
+            String value = new String(data, offset, length, UTF_8);
+            offset += length;
+            return value;
+        }
+    }
+}
@@ -16,7 +16,10 @@
 
 package com.androidzeitgeist.dashwatch.common;
 
+import android.graphics.Bitmap;
+
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 
@@ -26,14 +29,28 @@ import java.security.NoSuchAlgorithmException;
 public class Hash {
     private static final String HEXES = "0123456789ABCDEF";
 
+    public static final long FNV_64_INIT = 0xcbf29ce484222325L;
+    private static final long FNV_64_PRIME = 0x100000001b3L;
+
+    /**
+     * Creating a MessageDigest is expensive: Each thread reuses its own instance.
+     */
+    private static final ThreadLocal<MessageDigest> SHA1 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA1");
+            } catch (NoSuchAlgorithmException e) {
+                AssertionError error = new AssertionError("This device does not know what SHA1 is");
+                error.initCause(e);
+                throw error;
+            }
+        }
+    };
+
     public static String sha1(String input) {
         try {
-            MessageDigest md = MessageDigest.getInstance("SHA1");
-            return toHexadecimal(md.digest(input.getBytes("UTF-8")));
-        } catch (NoSuchAlgorithmException e) {
-            AssertionError error = new AssertionError("This device does not know what SHA1 is");
-            error.initCause(e);
-            throw error;
+            return sha1(input.getBytes("UTF-8"));
         } catch (UnsupportedEncodingException e) {
             AssertionError error = new AssertionError("This device has never heard of UTF-8");
             error.initCause(e);
@@ -41,6 +58,40 @@ public class Hash {
         }
     }
 
+    /**
+     * Hashes the pixel data of the given bitmap.
+     */
+    public static String sha1(Bitmap bitmap) {
+        ByteBuffer buffer = ByteBuffer.allocate(bitmap.getByteCount());
+        bitmap.copyPixelsToBuffer(buffer);
+        return sha1(buffer.array());
+    }
+
+    public static String sha1(byte[] input) {
+        MessageDigest md = SHA1.get();
+        md.reset();
+        return toHexadecimal(md.digest(input));
+    }
+
+    /**
+     * Continues a 64 bit FNV-1a hash with the characters of the given string. Null and empty
+     * strings result in different hashes; each string is terminated so that ("ab", "c") and
+     * ("a", "bc") do not collide. This is not a cryptographic hash.
+     */
+    public static long fnv64(long hash, String input) {
+        if (input == null) {
+            return (hash ^ 0xFF) * FNV_64_PRIME;
+        }
+
+        for (int i = 0; i < input.length(); i++) {
+            char c = input.charAt(i);
+            hash = (hash ^ (c & 0xFF)) * FNV_64_PRIME;
+            hash = (hash ^ (c >>> 8)) * FNV_64_PRIME;
+        }
+
+        return (hash ^ 0xFE) * FNV_64_PRIME;
+    }
+
     private static String toHexadecimal(byte [] raw) {
         final StringBuilder hex = new StringBuilder(2 * raw.length);
         for (final byte b : raw) {
@@ -49,6 +49,7 @@ import android.content.Context;
 import android.content.res.AssetManager;
 import android.net.Uri;
 import android.os.Build;
+import android.os.CancellationSignal;
 import android.os.Environment;
 import android.text.TextUtils;
 
@@ -233,6 +234,51 @@ public class IOUtil {
         readFullyWriteToOutputStream(in, new FileOutputStream(file));
     }
 
+    /**
+     * Like {@link #readFullyWriteToFile(InputStream, File)} but stops as soon as the signal is
+     * canceled. The input stream is closed on cancellation, so that a read blocked on a stalled
+     * connection returns immediately. Closes the input stream in any case.
+     *
+     * @return false if the signal has been canceled.
+     */
+    public static boolean readFullyWriteToFile(final InputStream in, File file,
+                                               CancellationSignal signal) throws IOException {
+        signal.setOnCancelListener(new CancellationSignal.OnCancelListener() {
+            @Override
+            public void onCancel() {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // The copy fails and checks the signal anyway.
+                }
+            }
+        });
+
+        OutputStream out = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int bytesRead;
+            while ((bytesRead = in.read(buffer)) > 0) {
+                if (signal.isCanceled()) {
+                    return false;
+                }
+                out.write(buffer, 0, bytesRead);
+            }
+            out.flush();
+            return !signal.isCanceled();
+        } catch (IOException e) {
+            if (signal.isCanceled()) {
+                // Caused by closing the input stream.
+                return false;
+            }
+            throw e;
+        } finally {
+            signal.setOnCancelListener(null);
+            out.close();
+            in.close();
+        }
+    }
+
     public static void readFullyWriteToOutputStream(InputStream in, OutputStream out)
             throws IOException {
         try {
@@ -247,6 +293,17 @@ public class IOUtil {
         }
     }
 
+    public static byte[] readFully(File file) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+        InputStream in = new FileInputStream(file);
+        try {
+            readFullyWriteToOutputStream(in, out);
+        } finally {
+            in.close();
+        }
+        return out.toByteArray();
+    }
+
     public static String readFullyPlainText(InputStream in) throws IOException {
         ByteArrayOutputStream out = new ByteArrayOutputStream();
         byte[] buffer = new byte[1024];
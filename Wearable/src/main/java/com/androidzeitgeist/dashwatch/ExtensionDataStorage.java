@@ -22,6 +22,12 @@ import android.util.Log;
 
 import com.androidzeitgeist.dashwatch.common.ExtensionUpdate;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
 public class ExtensionDataStorage {
     private static final String TAG = "DashWatch/ExtensionDataStorage";
 
@@ -30,13 +36,21 @@ public class ExtensionDataStorage {
     private static final String KEY_NEXT_EXTENSION_ID = "next_extension_id";
     private static final String KEY_SUFFIX_NOTIFICATION_ID = "notification_id";
     private static final String KEY_SUFFIX_EXTENSION_HASH = "hash";
+    private static final String KEY_SUFFIX_FINGERPRINT = "fingerprint";
     private static final String KEY_SILENT_SINCE = "silent_since";
+    private static final String KEY_SNAPSHOT_COMPONENTS = "snapshot_components";
 
     private static final int SILENCE_PERIOD = 1000 * 60 * 60 * 12;
 
     private SharedPreferences preferences;
     private int nextExtensionId;
 
+    /**
+     * Fingerprints of the last known content of each extension component. Mirrors the stored
+     * fingerprints so that unchanged updates are detected without reading the preferences.
+     */
+    private Map<String, Long> fingerprints = new HashMap<String, Long>();
+
     public ExtensionDataStorage(Context context) {
         preferences = context.getSharedPreferences(PREFERENCE_NAME, Context.MODE_PRIVATE);
         nextExtensionId = preferences.getInt(KEY_NEXT_EXTENSION_ID, 1);
@@ -60,17 +74,29 @@ public class ExtensionDataStorage {
     }
 
     public synchronized boolean isNew(ExtensionUpdate update) {
-        String key = createKey(update, KEY_SUFFIX_EXTENSION_HASH);
+        long fingerprint = update.getFingerprint();
+
+        Long lastKnownFingerprint = fingerprints.get(update.getComponent());
+        if (lastKnownFingerprint != null && lastKnownFingerprint == fingerprint) {
+            return false;
+        }
 
-        String contentHash = update.getContentHash();
-        String lastKnownHash = preferences.getString(key, null);
+        String key = createKey(update, KEY_SUFFIX_FINGERPRINT);
 
-        if (lastKnownHash == null || !contentHash.equals(lastKnownHash)) {
-            preferences.edit().putString(key, contentHash).apply();
-            return true;
+        if (lastKnownFingerprint == null && preferences.contains(key)
+                && preferences.getLong(key, 0) == fingerprint) {
+            fingerprints.put(update.getComponent(), fingerprint);
+            return false;
         }
 
-        return false;
+        fingerprints.put(update.getComponent(), fingerprint);
+
+        preferences.edit()
+            .putLong(key, fingerprint)
+            .remove(createKey(update, KEY_SUFFIX_EXTENSION_HASH))
+            .apply();
+
+        return true;
     }
 
     public synchronized void shutUpNotification(String notificationComponent) {
@@ -92,6 +118,22 @@ public class ExtensionDataStorage {
         return silentSince != 0 && System.currentTimeMillis() < silentSince + SILENCE_PERIOD;
     }
 
+    /**
+     * Remembers the extension components of the latest snapshot and returns the components of the
+     * previous snapshot that are not part of the latest one anymore.
+     */
+    public synchronized Set<String> replaceSnapshotComponents(Set<String> components) {
+        Set<String> removedComponents = new HashSet<String>(
+                preferences.getStringSet(KEY_SNAPSHOT_COMPONENTS, Collections.<String>emptySet()));
+        removedComponents.removeAll(components);
+
+        preferences.edit()
+            .putStringSet(KEY_SNAPSHOT_COMPONENTS, components)
+            .apply();
+
+        return removedComponents;
+    }
+
     private static String createKey(ExtensionUpdate update, String keySuffix) {
         return createKey(update.getComponent(), keySuffix);
     }
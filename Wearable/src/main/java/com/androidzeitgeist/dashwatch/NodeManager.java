@@ -17,18 +17,24 @@
 package com.androidzeitgeist.dashwatch;
 
 import android.content.Context;
+import android.util.DisplayMetrics;
 import android.util.Log;
 
-import com.androidzeitgeist.dashwatch.common.ConnectionUtil;
+import com.androidzeitgeist.dashwatch.common.ConnectionManager;
 import com.androidzeitgeist.dashwatch.common.Constants;
+import com.androidzeitgeist.dashwatch.common.ExtensionSnapshot;
+import com.androidzeitgeist.dashwatch.common.ExtensionUpdateCodec;
 import com.google.android.gms.common.api.GoogleApiClient;
 import com.google.android.gms.common.api.PendingResult;
 import com.google.android.gms.common.api.ResultCallback;
+import com.google.android.gms.wearable.DataMap;
 import com.google.android.gms.wearable.MessageApi;
 import com.google.android.gms.wearable.Node;
 import com.google.android.gms.wearable.Wearable;
 
 import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -40,7 +46,7 @@ public class NodeManager {
     private static NodeManager sInstance;
 
     private Context mApplicationContext;
-    private GoogleApiClient mGoogleApiClient;
+    private ConnectionManager mConnectionManager;
     private ExecutorService mExecutorService;
 
     public static NodeManager getsInstance(Context context) {
@@ -54,15 +60,24 @@ public class NodeManager {
     private NodeManager(Context context) {
         mExecutorService = Executors.newSingleThreadExecutor();
         mApplicationContext = context.getApplicationContext();
-        mGoogleApiClient = new GoogleApiClient.Builder(mApplicationContext)
-            .addApi(Wearable.API)
-            .build();
+        mConnectionManager = ConnectionManager.getInstance(mApplicationContext);
     }
 
     public void sendSetupMessage() {
         Log.i(TAG, "sendSetupMessage()");
 
-        sendMessageToNodesInBackground(Constants.PATH_SETUP, null);
+        DisplayMetrics displayMetrics = mApplicationContext.getResources().getDisplayMetrics();
+
+        DataMap setup = new DataMap();
+        setup.putInt(Constants.KEY_DISPLAY_WIDTH, displayMetrics.widthPixels);
+        setup.putInt(Constants.KEY_DISPLAY_HEIGHT, displayMetrics.heightPixels);
+        setup.putInt(Constants.KEY_SNAPSHOT_VERSION, ExtensionSnapshot.VERSION);
+        setup.putIntegerArrayList(Constants.KEY_CODECS,
+                new ArrayList<Integer>(Collections.singletonList(ExtensionUpdateCodec.VERSION)));
+        setup.putStringArrayList(Constants.KEY_ICON_DIGESTS,
+                WearableCache.getInstance(mApplicationContext).getIconDigests());
+
+        sendMessageToNodesInBackground(Constants.PATH_SETUP, setup.toByteArray());
     }
 
     public Future<?> sendIntentMessage(String intentUri) {
@@ -77,6 +92,34 @@ public class NodeManager {
         }
     }
 
+    /**
+     * Tells the phone that the icons with the given digests have been stored and do not need to be
+     * sent again.
+     */
+    public void sendIconAck(ArrayList<String> digests) {
+        Log.i(TAG, "sendIconAck()");
+
+        DataMap ack = new DataMap();
+        ack.putStringArrayList(Constants.KEY_ICON_DIGESTS, digests);
+
+        sendMessageToNodesInBackground(Constants.PATH_ICON_ACK, ack.toByteArray());
+    }
+
+    /**
+     * Asks the phone to send the icon with the given digest again.
+     */
+    public void sendIconMissing(String digest) {
+        Log.i(TAG, "sendIconMissing()");
+
+        try {
+            sendMessageToNodesInBackground(Constants.PATH_ICON_MISSING, digest.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            AssertionError error = new AssertionError("This device has no clue what UTF-8 is..");
+            error.initCause(e);
+            throw error;
+        }
+    }
+
     private Future<?> sendMessageToNodesInBackground(final String path, final byte[] data) {
         return mExecutorService.submit(new Runnable() {
             @Override
@@ -87,16 +130,17 @@ public class NodeManager {
     }
 
     private void sendMessageToNodes(String path, byte[] data) {
-        if (!ConnectionUtil.validateConnection(mGoogleApiClient)) {
+        GoogleApiClient googleApiClient = mConnectionManager.getConnectedClient();
+        if (googleApiClient == null) {
             Log.w(TAG, "No connection available");
             return;
         }
 
-        List<Node> nodes = Wearable.NodeApi.getConnectedNodes(mGoogleApiClient).await().getNodes();
+        List<Node> nodes = Wearable.NodeApi.getConnectedNodes(googleApiClient).await().getNodes();
         for (Node node : nodes) {
             Log.d(TAG, String.format("Sending message to node %s", node.getId()));
 
-            PendingResult<MessageApi.SendMessageResult> pendingResult = Wearable.MessageApi.sendMessage(mGoogleApiClient, node.getId(), path, data);
+            PendingResult<MessageApi.SendMessageResult> pendingResult = Wearable.MessageApi.sendMessage(googleApiClient, node.getId(), path, data);
             pendingResult.setResultCallback(new ResultCallback<MessageApi.SendMessageResult>() {
                 @Override
                 public void onResult(MessageApi.SendMessageResult result) {
@@ -24,12 +24,15 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.util.Log;
 
+import com.androidzeitgeist.dashwatch.common.AssetBatchLoader;
 import com.androidzeitgeist.dashwatch.common.AssetHelper;
 import com.androidzeitgeist.dashwatch.common.Constants;
+import com.androidzeitgeist.dashwatch.common.ExtensionSnapshot;
 import com.androidzeitgeist.dashwatch.common.ExtensionUpdate;
 import com.androidzeitgeist.dashwatch.event.ArtworkUpdate;
 import com.androidzeitgeist.dashwatch.event.BusProvider;
 import com.google.android.gms.common.api.GoogleApiClient;
+import com.google.android.gms.wearable.Asset;
 import com.google.android.gms.wearable.DataEvent;
 import com.google.android.gms.wearable.DataEventBuffer;
 import com.google.android.gms.wearable.DataItem;
@@ -39,6 +42,13 @@ import com.google.android.gms.wearable.MessageEvent;
 import com.google.android.gms.wearable.Wearable;
 import com.google.android.gms.wearable.WearableListenerService;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 public class NotificationUpdateService extends WearableListenerService {
     private static final String TAG = "NotificationUpdate";
 
@@ -78,33 +88,176 @@ public class NotificationUpdateService extends WearableListenerService {
     public void onDataChanged(DataEventBuffer dataEvents) {
         Log.d(TAG, "onDataChanged()");
 
+        // Updates waiting for their icon, keyed by data item path. The icons are loaded as a batch.
+        final Map<String, ExtensionUpdate> pendingUpdates = new HashMap<String, ExtensionUpdate>();
+        Map<String, Asset> pendingIcons = new HashMap<String, Asset>();
+
+        // Digests of the icons received (to acknowledge) and referenced but not found in the cache.
+        final ArrayList<String> receivedIcons = new ArrayList<String>();
+        Set<String> missingIcons = new HashSet<String>();
+
         for (DataEvent dataEvent : dataEvents) {
-            if (dataEvent.getType() == DataEvent.TYPE_CHANGED) {
-                DataItem item = dataEvent.getDataItem();
-                String path = item.getUri().getPath();
+            DataItem item = dataEvent.getDataItem();
+            String path = item.getUri().getPath();
 
+            if (dataEvent.getType() == DataEvent.TYPE_CHANGED) {
                 Log.d(TAG, "Received: " + path);
 
-                if (Constants.PATH_EXTENSION_UPDATE.equals(path)) {
-                    updateNotification(item);
+                if (path.startsWith(Constants.PATH_EXTENSION_UPDATE_PREFIX)
+                        || Constants.PATH_EXTENSION_UPDATE.equals(path)) {
+                    DataMap dataMap = DataMapItem.fromDataItem(item).getDataMap();
+                    ExtensionUpdate update = ExtensionUpdate.fromDataMap(dataMap);
+                    if (update == null) {
+                        continue;
+                    }
+
+                    Asset icon = ExtensionUpdate.getIconAsset(dataMap);
+
+                    if (icon != null) {
+                        pendingUpdates.put(path, update);
+                        pendingIcons.put(path, icon);
+                    } else {
+                        if (update.getIconDigest() != null && !loadCachedIcon(update)) {
+                            missingIcons.add(update.getIconDigest());
+                        }
+                        updateNotification(update);
+                    }
+                } else if (Constants.PATH_EXTENSION_SNAPSHOT.equals(path)) {
+                    applySnapshot(item, receivedIcons, missingIcons);
                 } else if (Constants.PATH_ARTWORK_UDPATE.equals(path)) {
                     updateArtwork(item);
                 }
+            } else if (dataEvent.getType() == DataEvent.TYPE_DELETED) {
+                Log.d(TAG, "Deleted: " + path);
+
+                String component = ExtensionUpdate.getComponentFromDataPath(path);
+                if (component != null) {
+                    removeNotification(component);
+                }
             }
         }
+
+        AssetBatchLoader.load(this, pendingIcons, new AssetBatchLoader.OnAssetLoadedListener() {
+            @Override
+            public void onAssetLoaded(String key, byte[] data, Bitmap bitmap) {
+                ExtensionUpdate update = pendingUpdates.get(key);
+                String digest = update.getIconDigest();
+
+                if (digest != null && bitmap != null) {
+                    mCache.putIcon(digest, data);
+                    receivedIcons.add(digest);
+                }
+
+                update.setIcon(bitmap, null, digest);
+                updateNotification(update);
+            }
+        });
+
+        NodeManager nodeManager = NodeManager.getsInstance(this);
+
+        if (!receivedIcons.isEmpty()) {
+            nodeManager.sendIconAck(receivedIcons);
+        }
+
+        for (String digest : missingIcons) {
+            nodeManager.sendIconMissing(digest);
+        }
     }
 
-    private void updateNotification(DataItem dataItem) {
-        Log.i(TAG, "updateNotification()");
+    /**
+     * Replaces the state of all extensions with the snapshot: The watch face is updated once for
+     * all extensions. Received icons are stored; the digests of received and missing icons are
+     * added to the given collections.
+     */
+    private void applySnapshot(DataItem item, final List<String> receivedIcons, Set<String> missingIcons) {
+        Log.i(TAG, "applySnapshot()");
 
-        DataMap dataMap = DataMapItem.fromDataItem(dataItem).getDataMap();
+        DataMap dataMap = DataMapItem.fromDataItem(item).getDataMap();
+        ExtensionSnapshot snapshot = ExtensionSnapshot.fromDataMap(dataMap);
+
+        if (snapshot == null) {
+            return;
+        }
+
+        // Received icons, keyed by digest. Each bitmap is only used for one update.
+        final Map<String, Bitmap> icons = new HashMap<String, Bitmap>();
+
+        AssetBatchLoader.load(this, ExtensionSnapshot.getIconAssets(dataMap), new AssetBatchLoader.OnAssetLoadedListener() {
+            @Override
+            public void onAssetLoaded(String digest, byte[] data, Bitmap bitmap) {
+                if (bitmap != null) {
+                    mCache.putIcon(digest, data);
+                    receivedIcons.add(digest);
+                    icons.put(digest, bitmap);
+                }
+            }
+        });
+
+        Set<String> components = new HashSet<String>();
+
+        for (ExtensionUpdate update : snapshot.getUpdates()) {
+            components.add(update.getComponent());
+
+            String digest = update.getIconDigest();
+            if (digest == null) {
+                continue;
+            }
 
-        ExtensionUpdate update = ExtensionUpdate.fromDataMap(this, dataMap);
+            Bitmap bitmap = icons.remove(digest);
+            if (bitmap != null) {
+                update.setIcon(bitmap, null, digest);
+            } else if (!loadCachedIcon(update)) {
+                missingIcons.add(digest);
+            }
+        }
+
+        BusProvider.postOnMainThread(snapshot);
+
+        for (ExtensionUpdate update : snapshot.getUpdates()) {
+            showNotification(update);
+        }
+
+        // Extensions that are not active anymore.
+        for (String component : mStorage.replaceSnapshotComponents(components)) {
+            ExtensionUpdate update = new ExtensionUpdate();
+            update.setComponent(component);
+            update.setVisible(false);
+
+            buildNotification(update);
+        }
+    }
+
+    /**
+     * Sets the icon referenced by the update's digest from the cache.
+     *
+     * @return false if the icon is not in the cache.
+     */
+    private boolean loadCachedIcon(ExtensionUpdate update) {
+        String digest = update.getIconDigest();
+
+        byte[] data = mCache.getIcon(digest);
+        Bitmap bitmap = data != null ? AssetBatchLoader.decodePooled(data) : null;
+
+        if (bitmap == null) {
+            Log.w(TAG, String.format("Icon %s is not in the cache", digest));
+            return false;
+        }
+
+        update.setIcon(bitmap, null, digest);
+        return true;
+    }
+
+    private void updateNotification(ExtensionUpdate update) {
+        Log.i(TAG, "updateNotification()");
 
         BusProvider.postOnMainThread(update);
 
+        showNotification(update);
+    }
+
+    private void showNotification(ExtensionUpdate update) {
         if (update.hasIntent()) {
-            Log.d(TAG, "Intent received: " + update.getIntent().toUri(0));
+            Log.d(TAG, "Intent received: " + update.getIntentUri());
         } else {
             Log.d(TAG, "Update does not contain any intent");
         }
@@ -122,18 +275,38 @@ public class NotificationUpdateService extends WearableListenerService {
         buildNotification(update);
     }
 
+    private void removeNotification(String component) {
+        Log.i(TAG, "removeNotification()");
+
+        // An invisible update removes the extension from the watch face and its notification.
+        ExtensionUpdate update = new ExtensionUpdate();
+        update.setComponent(component);
+        update.setVisible(false);
+
+        BusProvider.postOnMainThread(update);
+
+        buildNotification(update);
+    }
+
     private void updateArtwork(DataItem dataItem) {
         Log.i(TAG, "updateArtwork()");
 
         DataMap dataMap = DataMapItem.fromDataItem(dataItem).getDataMap();
 
-        Bitmap bitmap = AssetHelper.loadBitmapFromAsset(this, dataMap.getAsset(Constants.KEY_ARTWORK_ASSET));
+        byte[] data = AssetHelper.loadBytesFromAsset(this, dataMap.getAsset(Constants.KEY_ARTWORK_ASSET));
+
+        if (data == null) {
+            Log.w(TAG, "Artwork could not be loaded from asset");
+            return;
+        }
+
+        Bitmap bitmap = BitmapFactory.decodeByteArray(data, 0, data.length);
 
         if (bitmap != null) {
-            mCache.putArtwork(bitmap);
+            mCache.putArtwork(data);
             BusProvider.postOnMainThread(new ArtworkUpdate(bitmap));
         } else {
-            Log.w(TAG, "Bitmap could not be loaded from asset");
+            Log.w(TAG, "Bitmap could not be decoded from asset");
         }
     }
 
@@ -157,9 +330,9 @@ public class NotificationUpdateService extends WearableListenerService {
 
         if (update.hasIntent()) {
             Intent intent = new Intent(this, MessageSenderService.class);
-            intent.putExtra(Constants.EXTRA_INTENT_URI, update.getIntent().toUri(0));
+            intent.putExtra(Constants.EXTRA_INTENT_URI, update.getIntentUri());
 
-            Log.i(TAG, String.format("Notification %s with intent: %s", update.getComponent(), update.getIntent().toUri(0)));
+            Log.i(TAG, String.format("Notification %s with intent: %s", update.getComponent(), update.getIntentUri()));
 
             PendingIntent pendingIntent = PendingIntent.getService(
                 this,
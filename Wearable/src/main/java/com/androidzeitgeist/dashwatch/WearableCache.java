@@ -27,13 +27,20 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
- * Cache implementation for caching data and artwork on the wearable.
+ * Cache implementation for caching data, artwork and extension icons on the wearable. Icons are
+ * stored by their digest so that the phone only needs to send icons the wearable does not have.
  */
 public class WearableCache {
     private static final String TAG = "DashWatch/WearableCache";
 
+    private static final String ICON_DIRECTORY = "icons";
+    private static final int MAX_ICON_COUNT = 64;
+
     private static WearableCache sInstance;
 
     private Context mApplicationContext;
@@ -68,7 +75,10 @@ public class WearableCache {
         return bitmap;
     }
 
-    public void putArtwork(Bitmap bitmap) {
+    /**
+     * Stores the encoded artwork as it has been received from the phone.
+     */
+    public void putArtwork(byte[] data) {
         File file = getArtworkFile();
 
         if (file.exists() && !file.delete()) {
@@ -80,7 +90,7 @@ public class WearableCache {
 
         try {
             stream = new FileOutputStream(file);
-            bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream);
+            stream.write(data);
 
             Log.d(TAG, String.format("Artwork cached: %s", file.getAbsolutePath()));
         } catch (IOException exception) {
@@ -96,6 +106,116 @@ public class WearableCache {
         }
     }
 
+    /**
+     * Returns the encoded icon with the given digest or null if it is not in the cache.
+     */
+    public byte[] getIcon(String digest) {
+        File file = new File(getIconDirectory(), digest);
+
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            byte[] data = IOUtil.readFully(file);
+
+            // Remember when the icon has been used last (See trimIcons()).
+            file.setLastModified(System.currentTimeMillis());
+
+            return data;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read cached icon", e);
+            return null;
+        }
+    }
+
+    /**
+     * Stores the encoded icon under its digest. The least recently used icons are removed if the
+     * cache holds too many icons.
+     */
+    public synchronized void putIcon(String digest, byte[] data) {
+        File directory = getIconDirectory();
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            Log.w(TAG, "Could not create icon cache directory");
+            return;
+        }
+
+        // Write to a temporary file first: A partially written icon must never be found by its digest.
+        File tempFile = new File(directory, digest + ".tmp");
+        FileOutputStream stream = null;
+
+        try {
+            stream = new FileOutputStream(tempFile);
+            stream.write(data);
+        } catch (IOException exception) {
+            Log.w(TAG, "Could not write icon to cache file due to IOException", exception);
+            return;
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    // Don't care..
+                }
+            }
+        }
+
+        if (!tempFile.renameTo(new File(directory, digest))) {
+            Log.w(TAG, "Could not move icon into cache");
+            tempFile.delete();
+            return;
+        }
+
+        trimIcons(directory);
+    }
+
+    /**
+     * Returns the digests of all icons in the cache.
+     */
+    public synchronized ArrayList<String> getIconDigests() {
+        ArrayList<String> digests = new ArrayList<String>();
+
+        String[] names = getIconDirectory().list();
+        if (names == null) {
+            return digests;
+        }
+
+        for (String name : names) {
+            if (!name.endsWith(".tmp")) {
+                digests.add(name);
+            }
+        }
+
+        return digests;
+    }
+
+    private void trimIcons(File directory) {
+        File[] files = directory.listFiles();
+        if (files == null || files.length <= MAX_ICON_COUNT) {
+            return;
+        }
+
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long lhsModified = lhs.lastModified();
+                long rhsModified = rhs.lastModified();
+
+                return lhsModified < rhsModified ? -1 : (lhsModified == rhsModified ? 0 : 1);
+            }
+        });
+
+        for (int i = 0; i < files.length - MAX_ICON_COUNT; i++) {
+            Log.d(TAG, String.format("Removing icon from cache: %s", files[i].getName()));
+            files[i].delete();
+        }
+    }
+
+    private File getIconDirectory() {
+        return new File(IOUtil.getBestAvailableCacheRoot(mApplicationContext), ICON_DIRECTORY);
+    }
+
     private File getArtworkFile() {
         return new File(IOUtil.getBestAvailableCacheRoot(mApplicationContext), "artwork.cache");
     }
@@ -35,14 +35,33 @@ public class StatusManager {
         updates = new LinkedList<ExtensionUpdate>();
     }
 
-    public synchronized void update(ExtensionUpdate update) {
+    /**
+     * Returns the previous update of the same extension that has been replaced or removed, or null.
+     */
+    public synchronized ExtensionUpdate update(ExtensionUpdate update) {
         if (update.isVisible()) {
-            add(update);
+            return add(update);
         } else {
-            remove(update);
+            return remove(update);
         }
     }
 
+    /**
+     * Replaces the state of all extensions at once. Returns the previous updates.
+     */
+    public synchronized List<ExtensionUpdate> replaceAll(List<ExtensionUpdate> newUpdates) {
+        List<ExtensionUpdate> previousUpdates = updates;
+
+        updates = new LinkedList<ExtensionUpdate>();
+        for (ExtensionUpdate update : newUpdates) {
+            if (update.isVisible()) {
+                updates.add(update);
+            }
+        }
+
+        return previousUpdates;
+    }
+
     public synchronized List<ExtensionUpdate> getRankedExtensions() {
         Log.i(TAG, String.format("getRankedExtensions(extensions=%d) ", updates.size()));
 
@@ -70,27 +89,31 @@ public class StatusManager {
         return rankedExtensions;
     }
 
-    private void add(ExtensionUpdate update) {
+    private ExtensionUpdate add(ExtensionUpdate update) {
         // First try to replace existing extension
         for (int i = 0; i < updates.size(); i++) {
             if (updates.get(i).getComponent().equals(update.getComponent())) {
-                updates.set(i, update);
-                return;
+                return updates.set(i, update);
             }
         }
 
         // It's a new extension
         updates.add(update);
+        return null;
     }
 
-    private void remove(ExtensionUpdate update) {
+    private ExtensionUpdate remove(ExtensionUpdate update) {
         Iterator<ExtensionUpdate> iterator = updates.iterator();
 
         while (iterator.hasNext()) {
-            if (iterator.next().getComponent().equals(update.getComponent())) {
+            ExtensionUpdate existingUpdate = iterator.next();
+
+            if (existingUpdate.getComponent().equals(update.getComponent())) {
                 iterator.remove();
-                return;
+                return existingUpdate;
             }
         }
+
+        return null;
     }
 }
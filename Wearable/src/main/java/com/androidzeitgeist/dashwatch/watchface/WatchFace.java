@@ -32,6 +32,8 @@ import android.widget.TextView;
 import com.androidzeitgeist.dashwatch.NodeManager;
 import com.androidzeitgeist.dashwatch.R;
 import com.androidzeitgeist.dashwatch.WearableCache;
+import com.androidzeitgeist.dashwatch.common.BitmapPool;
+import com.androidzeitgeist.dashwatch.common.ExtensionSnapshot;
 import com.androidzeitgeist.dashwatch.common.ExtensionUpdate;
 import com.androidzeitgeist.dashwatch.event.ArtworkUpdate;
 import com.androidzeitgeist.dashwatch.event.BusProvider;
@@ -152,9 +154,40 @@ public class WatchFace extends Activity {
     public void onStatusUpdate(ExtensionUpdate update) {
         Log.d(TAG, "Received update for extension: " + update.getComponent());
 
-        mStatusManager.update(update);
+        ExtensionUpdate previousUpdate = mStatusManager.update(update);
 
         updateExtensionsStatus();
+
+        // The previous icon is not displayed anymore and can be reused for decoding other icons.
+        if (previousUpdate != null && previousUpdate.getIcon() != update.getIcon()) {
+            BitmapPool.getInstance().put(previousUpdate.getIcon());
+        }
+    }
+
+    @Subscribe
+    public void onSnapshot(ExtensionSnapshot snapshot) {
+        Log.d(TAG, String.format("Received snapshot with %d extensions", snapshot.getUpdates().size()));
+
+        List<ExtensionUpdate> previousUpdates = mStatusManager.replaceAll(snapshot.getUpdates());
+
+        updateExtensionsStatus();
+
+        // Icons that are not displayed anymore can be reused for decoding other icons.
+        for (ExtensionUpdate previousUpdate : previousUpdates) {
+            if (!isIconUsed(previousUpdate.getIcon(), snapshot.getUpdates())) {
+                BitmapPool.getInstance().put(previousUpdate.getIcon());
+            }
+        }
+    }
+
+    private static boolean isIconUsed(Bitmap icon, List<ExtensionUpdate> updates) {
+        for (ExtensionUpdate update : updates) {
+            if (update.getIcon() == icon) {
+                return true;
+            }
+        }
+
+        return false;
     }
 
     @Subscribe